@@ -0,0 +1,469 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.lucidj.acctd;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Attributes the cpu time and the heap allocated by every live thread to the
+// bundle which owns it, and publishes the totals as one BundleUsage mbean per
+// bundle. A thread belongs to the bundle of its context classloader; threads
+// without one take the bundle of their thread group, when all the attributed
+// threads in the group agree, or else keep their last known owner.
+//
+// Each sample costs one enumeration of the threads plus one batched call for
+// all cpu times and another for all allocation counters, so it stays on.
+class BundleAccounting implements BundleAccountingMBean, SynchronousBundleListener, Runnable
+{
+    private final static Logger log = LoggerFactory.getLogger (BundleAccounting.class);
+
+    final static String DOMAIN = "org.lucidj.acctd";
+
+    public final static String INTERVAL_PROPERTY = "lucidj.acctd.interval";
+
+    private final static int DEFAULT_INTERVAL = 5000;     // 5 seconds, 0 disables the accounting
+
+    private final static String[] LONG_ARRAY_SIGNATURE = { long[].class.getName () };
+    private final static long[] NO_USAGE = new long [3];
+
+    private BundleContext context;
+    private MBeanServer mbean_server;
+    private ThreadMXBean thread_mx;
+    private ObjectName threading_name;
+    private ObjectName object_name;
+    private ScheduledExecutorService executor;
+    private int interval;
+
+    private volatile boolean cpu_tracked;
+    private volatile boolean allocation_tracked;
+    private boolean batch_cpu = true;
+
+    private ThreadGroup root_group;
+    private final Set<ThreadGroup> shared_groups = new HashSet<> ();
+    private Map<Long, ThreadState> thread_states = new HashMap<> ();
+    private final Map<Long, BundleUsage> usages = new ConcurrentHashMap<> ();
+    private long last_sample;
+
+    private volatile int thread_count;
+    private volatile long unattributed_cpu_time;
+    private volatile long unattributed_allocated_bytes;
+    private volatile long sample_cost;
+
+    public BundleAccounting (BundleContext context)
+    {
+        this.context = context;
+    }
+
+    private int get_int_property (String property, int default_value)
+    {
+        String value = context.getProperty (property);
+
+        try
+        {
+            return ((value == null)? default_value: Integer.parseInt (value.trim ()));
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn ("Invalid {}: {}", property, value);
+            return (default_value);
+        }
+    }
+
+    // Turns on the per-thread counter exposed as <name>Supported/<name>Enabled, if needed
+    private boolean enable_counter (String name)
+    {
+        try
+        {
+            if (!(Boolean)mbean_server.getAttribute (threading_name, name + "Supported"))
+            {
+                return (false);
+            }
+
+            if (!(Boolean)mbean_server.getAttribute (threading_name, name + "Enabled"))
+            {
+                mbean_server.setAttribute (threading_name, new Attribute (name + "Enabled", true));
+            }
+            return (true);
+        }
+        catch (Exception e)
+        {
+            // Not available on this vm
+            log.debug ("Thread counter {} not available: {}", name, e.toString ());
+            return (false);
+        }
+    }
+
+    public boolean start ()
+        throws Exception
+    {
+        interval = get_int_property (INTERVAL_PROPERTY, DEFAULT_INTERVAL);
+
+        if (interval <= 0)
+        {
+            log.info ("Bundle accounting disabled");
+            return (false);
+        }
+
+        mbean_server = ManagementFactory.getPlatformMBeanServer ();
+        thread_mx = ManagementFactory.getThreadMXBean ();
+        threading_name = new ObjectName (ManagementFactory.THREAD_MXBEAN_NAME);
+        cpu_tracked = enable_counter ("ThreadCpuTime");
+        allocation_tracked = enable_counter ("ThreadAllocatedMemory");
+
+        if (!cpu_tracked && !allocation_tracked)
+        {
+            log.warn ("Thread cpu time and allocation counters not available, bundle accounting disabled");
+            return (false);
+        }
+
+        // The root group and the framework launcher group hold threads of everyone
+        Thread current = Thread.currentThread ();
+        root_group = current.getThreadGroup ();
+
+        while (root_group.getParent () != null)
+        {
+            root_group = root_group.getParent ();
+        }
+        shared_groups.add (root_group);
+        shared_groups.add (current.getThreadGroup ());
+
+        object_name = new ObjectName (DOMAIN + ":type=BundleAccounting");
+        mbean_server.registerMBean (this, object_name);
+        context.addBundleListener (this);
+
+        executor = Executors.newSingleThreadScheduledExecutor (r ->
+        {
+            Thread t = new Thread (r, "acctd-sampler");
+            t.setDaemon (true);
+            return (t);
+        });
+        executor.scheduleAtFixedRate (this, 0, interval, TimeUnit.MILLISECONDS);
+        log.info ("Bundle accounting started: every {}ms, cpu={} allocation={}", interval, cpu_tracked, allocation_tracked);
+        return (true);
+    }
+
+    public void stop ()
+    {
+        executor.shutdownNow ();
+
+        try
+        {
+            executor.awaitTermination (interval, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ignore) {};
+        executor = null;
+
+        context.removeBundleListener (this);
+
+        for (Long bundle_id: usages.keySet ())
+        {
+            unregister_usage (bundle_id);
+        }
+
+        try
+        {
+            mbean_server.unregisterMBean (object_name);
+        }
+        catch (Exception ignore) {};
+        log.info ("Bundle accounting stopped");
+    }
+
+    @Override // BundleListener
+    public void bundleChanged (BundleEvent event)
+    {
+        if (event.getType () == BundleEvent.UNINSTALLED)
+        {
+            unregister_usage (event.getBundle ().getBundleId ());
+        }
+    }
+
+    private synchronized BundleUsage get_usage (Bundle bundle)
+    {
+        BundleUsage usage = usages.get (bundle.getBundleId ());
+
+        if (usage == null && bundle.getState () != Bundle.UNINSTALLED)
+        {
+            try
+            {
+                usage = new BundleUsage (bundle);
+                mbean_server.registerMBean (usage, usage.getObjectName ());
+                usages.put (bundle.getBundleId (), usage);
+            }
+            catch (Exception e)
+            {
+                log.warn ("Unable to register usage of bundle {}: {}", bundle.getBundleId (), e.toString ());
+                return (null);
+            }
+        }
+        return (usage);
+    }
+
+    private synchronized void unregister_usage (long bundle_id)
+    {
+        BundleUsage usage = usages.remove (bundle_id);
+
+        if (usage != null)
+        {
+            try
+            {
+                mbean_server.unregisterMBean (usage.getObjectName ());
+            }
+            catch (Exception ignore) {};
+        }
+    }
+
+    private Thread[] get_threads ()
+    {
+        Thread[] threads = new Thread [root_group.activeCount () + 16];
+        int count;
+
+        // The count is an estimate, make sure we got them all
+        while ((count = root_group.enumerate (threads, true)) == threads.length)
+        {
+            threads = new Thread [threads.length * 2];
+        }
+        return (Arrays.copyOf (threads, count));
+    }
+
+    private Bundle get_context_bundle (Thread thread)
+    {
+        ClassLoader classloader = thread.getContextClassLoader ();
+        return ((classloader instanceof BundleReference)? ((BundleReference)classloader).getBundle (): null);
+    }
+
+    private long[] get_cpu_times (long[] ids)
+    {
+        if (!cpu_tracked)
+        {
+            return (null);
+        }
+
+        if (batch_cpu)
+        {
+            try
+            {
+                return ((long[])mbean_server.invoke (threading_name, "getThreadCpuTime",
+                    new Object[] { ids }, LONG_ARRAY_SIGNATURE));
+            }
+            catch (Exception e)
+            {
+                log.debug ("No batched thread cpu time, reading one by one: {}", e.toString ());
+                batch_cpu = false;
+            }
+        }
+
+        long[] cpu_times = new long [ids.length];
+
+        for (int i = 0; i < ids.length; i++)
+        {
+            cpu_times [i] = thread_mx.getThreadCpuTime (ids [i]);
+        }
+        return (cpu_times);
+    }
+
+    private long[] get_allocated_bytes (long[] ids)
+    {
+        if (allocation_tracked)
+        {
+            try
+            {
+                return ((long[])mbean_server.invoke (threading_name, "getThreadAllocatedBytes",
+                    new Object[] { ids }, LONG_ARRAY_SIGNATURE));
+            }
+            catch (Exception e)
+            {
+                log.warn ("Unable to read thread allocation counters, no longer tracked: {}", e.toString ());
+                allocation_tracked = false;
+            }
+        }
+        return (null);
+    }
+
+    @Override // Runnable
+    public void run ()
+    {
+        long now = System.nanoTime ();
+        Thread[] threads = get_threads ();
+        long[] ids = new long [threads.length];
+        Bundle[] owners = new Bundle [threads.length];
+        Map<ThreadGroup, Bundle> group_owners = new HashMap<> ();
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            ids [i] = threads [i].getId ();
+            owners [i] = get_context_bundle (threads [i]);
+            ThreadGroup group = threads [i].getThreadGroup ();
+
+            if (owners [i] != null && group != null && !shared_groups.contains (group))
+            {
+                // A group shared by more than one bundle has no owner
+                if (!group_owners.containsKey (group))
+                {
+                    group_owners.put (group, owners [i]);
+                }
+                else if (group_owners.get (group) != owners [i])
+                {
+                    group_owners.put (group, null);
+                }
+            }
+        }
+
+        long[] cpu_times = get_cpu_times (ids);
+        long[] allocated = get_allocated_bytes (ids);
+        Map<Long, ThreadState> states = new HashMap<> ();
+        Map<BundleUsage, long[]> deltas = new HashMap<> ();
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            long cpu_time = (cpu_times == null)? 0: cpu_times [i];
+            long allocated_bytes = (allocated == null)? 0: allocated [i];
+
+            if (cpu_time == -1 || allocated_bytes == -1)
+            {
+                // The thread is gone
+                continue;
+            }
+
+            ThreadState state = thread_states.get (ids [i]);
+            Bundle owner = owners [i];
+
+            if (owner == null)
+            {
+                owner = group_owners.get (threads [i].getThreadGroup ());
+            }
+
+            if (state == null)
+            {
+                // Whatever the thread used before we saw it goes to its current owner
+                state = new ThreadState ();
+            }
+            else if (owner == null)
+            {
+                // Pool threads often drop the context classloader between tasks
+                owner = state.owner;
+            }
+
+            long cpu_delta = Math.max (0, cpu_time - state.cpu_time);
+            long allocated_delta = Math.max (0, allocated_bytes - state.allocated_bytes);
+            state.cpu_time = cpu_time;
+            state.allocated_bytes = allocated_bytes;
+            state.owner = owner;
+            states.put (ids [i], state);
+
+            BundleUsage usage = (owner == null)? null: get_usage (owner);
+
+            if (usage == null)
+            {
+                unattributed_cpu_time += cpu_delta;
+                unattributed_allocated_bytes += allocated_delta;
+                continue;
+            }
+
+            long[] delta = deltas.computeIfAbsent (usage, k -> new long [3]);
+            delta [0] += cpu_delta;
+            delta [1] += allocated_delta;
+            delta [2]++;
+        }
+
+        // Dead threads are left behind
+        thread_states = states;
+
+        long elapsed = (last_sample == 0)? 0: now - last_sample;
+
+        for (BundleUsage usage: usages.values ())
+        {
+            long[] delta = deltas.getOrDefault (usage, NO_USAGE);
+            usage.update (delta [0], delta [1], (int)delta [2], elapsed);
+        }
+
+        last_sample = now;
+        thread_count = threads.length;
+        sample_cost = (System.nanoTime () - now) / 1000;
+    }
+
+    @Override // BundleAccountingMBean
+    public int getInterval ()
+    {
+        return (interval);
+    }
+
+    @Override // BundleAccountingMBean
+    public boolean isCpuTimeTracked ()
+    {
+        return (cpu_tracked);
+    }
+
+    @Override // BundleAccountingMBean
+    public boolean isAllocationTracked ()
+    {
+        return (allocation_tracked);
+    }
+
+    @Override // BundleAccountingMBean
+    public int getThreadCount ()
+    {
+        return (thread_count);
+    }
+
+    @Override // BundleAccountingMBean
+    public long getUnattributedCpuTime ()
+    {
+        return (unattributed_cpu_time);
+    }
+
+    @Override // BundleAccountingMBean
+    public long getUnattributedAllocatedBytes ()
+    {
+        return (unattributed_allocated_bytes);
+    }
+
+    @Override // BundleAccountingMBean
+    public long getSampleCost ()
+    {
+        return (sample_cost);
+    }
+
+    private static class ThreadState
+    {
+        long cpu_time;
+        long allocated_bytes;
+        Bundle owner;
+    }
+}
+
+// EOF
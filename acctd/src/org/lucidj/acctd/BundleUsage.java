@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.lucidj.acctd;
+
+import org.osgi.framework.Bundle;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+// The resources used by the threads of one bundle. Totals count from the
+// moment the accounting started, and the rates are from the last interval.
+// Only the sampler thread updates it.
+class BundleUsage implements BundleUsageMBean
+{
+    private final Bundle bundle;
+    private final ObjectName object_name;
+
+    private volatile long cpu_time;
+    private volatile long allocated_bytes;
+    private volatile int thread_count;
+    private volatile double cpu_load;
+    private volatile double allocation_rate;
+
+    BundleUsage (Bundle bundle)
+        throws MalformedObjectNameException
+    {
+        this.bundle = bundle;
+        this.object_name = new ObjectName (BundleAccounting.DOMAIN + ":type=BundleUsage,name="
+            + get_name_value (getSymbolicName ()) + ",id=" + bundle.getBundleId ());
+    }
+
+    private static String get_name_value (String name)
+    {
+        for (int i = 0; i < name.length (); i++)
+        {
+            switch (name.charAt (i))
+            {
+                case ',': case '=': case ':': case '\"': case '*': case '?': case '\n':
+                {
+                    return (ObjectName.quote (name));
+                }
+            }
+        }
+        return (name);
+    }
+
+    ObjectName getObjectName ()
+    {
+        return (object_name);
+    }
+
+    void update (long cpu_delta, long allocated_delta, int threads, long elapsed_ns)
+    {
+        cpu_time += cpu_delta;
+        allocated_bytes += allocated_delta;
+        thread_count = threads;
+
+        if (elapsed_ns > 0)
+        {
+            cpu_load = (double)cpu_delta / elapsed_ns;
+            allocation_rate = allocated_delta * 1e9 / elapsed_ns;
+        }
+    }
+
+    @Override // BundleUsageMBean
+    public long getBundleId ()
+    {
+        return (bundle.getBundleId ());
+    }
+
+    @Override // BundleUsageMBean
+    public String getSymbolicName ()
+    {
+        String name = bundle.getSymbolicName ();
+        return ((name == null)? "bundle" + bundle.getBundleId (): name);
+    }
+
+    @Override // BundleUsageMBean
+    public long getCpuTime ()
+    {
+        return (cpu_time);
+    }
+
+    @Override // BundleUsageMBean
+    public long getAllocatedBytes ()
+    {
+        return (allocated_bytes);
+    }
+
+    @Override // BundleUsageMBean
+    public int getThreadCount ()
+    {
+        return (thread_count);
+    }
+
+    @Override // BundleUsageMBean
+    public double getCpuLoad ()
+    {
+        return (cpu_load);
+    }
+
+    @Override // BundleUsageMBean
+    public double getAllocationRate ()
+    {
+        return (allocation_rate);
+    }
+}
+
+// EOF
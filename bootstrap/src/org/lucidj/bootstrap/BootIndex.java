@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.bootstrap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+// Index of the boot.d directory, scanned once when Bootstrap starts.
+//
+// Every jar is recorded with its size, mtime, symbolic name, version and
+// fragment flag. The index is persisted on the bootstrap bundle data area
+// (inside the felix cache, so both are always discarded together), and on
+// the next boot the manifest is only opened for jars that were changed.
+// Jars that match the previous index are flagged as unchanged. Only the
+// jars flagged as applied, whose boot action succeeded, are saved.
+//
+// Index file format, one jar per line, tab separated:
+//
+//    <path relative to boot.d> <size> <mtime> <symbolic name> <version> <fragment>
+//
+class BootIndex
+{
+    private final static String INDEX_HEADER = "# boot.d index v1";
+
+    private final File boot_d;
+    private final File index_file;
+    private final List<File> level_dirs = new ArrayList<> ();
+    private final Map<File, List<Entry>> entries = new HashMap<> ();
+    private int changed_count = 0;
+
+    BootIndex (File boot_d, File index_file)
+    {
+        this.boot_d = boot_d;
+        this.index_file = index_file;
+    }
+
+    private Map<String, Entry> load ()
+    {
+        Map<String, Entry> previous = new HashMap<> ();
+
+        if (index_file == null || !index_file.exists ())
+        {
+            return (previous);
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader (index_file.toPath (), StandardCharsets.UTF_8))
+        {
+            String line = reader.readLine ();
+
+            if (!INDEX_HEADER.equals (line))
+            {
+                // Unknown format, just rebuild everything
+                return (previous);
+            }
+
+            while ((line = reader.readLine ()) != null)
+            {
+                String[] fields = line.split ("\t", -1);
+
+                if (fields.length != 6)
+                {
+                    continue;
+                }
+
+                try
+                {
+                    Entry entry = new Entry (new File (boot_d, fields [0]), fields [0]);
+                    entry.size = Long.parseLong (fields [1]);
+                    entry.mtime = Long.parseLong (fields [2]);
+                    entry.symbolic_name = fields [3].isEmpty ()? null: fields [3];
+                    entry.version = fields [4].isEmpty ()? null: fields [4];
+                    entry.fragment = Boolean.parseBoolean (fields [5]);
+                    previous.put (entry.path, entry);
+                }
+                catch (NumberFormatException ignore) {};
+            }
+        }
+        catch (IOException ignore)
+        {
+            // An unreadable index is the same as no index
+            previous.clear ();
+        };
+        return (previous);
+    }
+
+    // Scans boot.d reusing the manifest data of the jars found unchanged
+    void scan ()
+    {
+        Map<String, Entry> previous = load ();
+        File[] dirs = boot_d.listFiles ();
+
+        if (dirs == null)
+        {
+            return;
+        }
+
+        // TODO: CHANGE SOMEDAY TO NUMERIC ORDERING
+        Arrays.sort (dirs);
+
+        for (File dir: dirs)
+        {
+            if (!dir.isDirectory ())
+            {
+                continue;
+            }
+
+            File[] files = dir.listFiles ();
+            List<Entry> dir_entries = new ArrayList<> ();
+
+            if (files != null)
+            {
+                Arrays.sort (files);
+
+                for (File file: files)
+                {
+                    String path = dir.getName () + "/" + file.getName ();
+                    Entry entry = new Entry (file, path);
+                    Entry old_entry = previous.get (path);
+
+                    entry.size = file.length ();
+                    entry.mtime = file.lastModified ();
+
+                    if (old_entry != null && old_entry.size == entry.size && old_entry.mtime == entry.mtime)
+                    {
+                        entry.symbolic_name = old_entry.symbolic_name;
+                        entry.version = old_entry.version;
+                        entry.fragment = old_entry.fragment;
+                        entry.unchanged = true;
+                    }
+                    else
+                    {
+                        read_manifest (entry);
+                        changed_count++;
+                    }
+                    dir_entries.add (entry);
+                }
+            }
+            level_dirs.add (dir);
+            entries.put (dir, Collections.unmodifiableList (dir_entries));
+        }
+    }
+
+    private void read_manifest (Entry entry)
+    {
+        if (!entry.file.isFile ())
+        {
+            return;
+        }
+
+        try (JarFile jar = new JarFile (entry.file, false))
+        {
+            Manifest manifest = jar.getManifest ();
+
+            if (manifest != null)
+            {
+                Attributes attrs = manifest.getMainAttributes ();
+                String bsn = attrs.getValue (Constants.BUNDLE_SYMBOLICNAME);
+
+                if (bsn != null)
+                {
+                    int semicolon = bsn.indexOf (';');
+                    entry.symbolic_name = ((semicolon == -1)? bsn: bsn.substring (0, semicolon)).trim ();
+                }
+                entry.version = attrs.getValue (Constants.BUNDLE_VERSION);
+                entry.fragment = attrs.getValue (Constants.FRAGMENT_HOST) != null;
+            }
+        }
+        catch (IOException ignore)
+        {
+            // Not a jar, the install will report it
+        };
+    }
+
+    void save ()
+        throws IOException
+    {
+        if (index_file == null)
+        {
+            return;
+        }
+
+        File temp_file = new File (index_file.getPath () + ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter (temp_file.toPath (), StandardCharsets.UTF_8))
+        {
+            writer.write (INDEX_HEADER);
+            writer.newLine ();
+
+            for (File dir: level_dirs)
+            {
+                for (Entry entry: entries.get (dir))
+                {
+                    if (!entry.applied)
+                    {
+                        // Failed or not reached, so it's retried next boot
+                        continue;
+                    }
+
+                    writer.write (entry.path + "\t" + entry.size + "\t" + entry.mtime
+                        + "\t" + ((entry.symbolic_name == null)? "": entry.symbolic_name)
+                        + "\t" + ((entry.version == null)? "": entry.version)
+                        + "\t" + entry.fragment);
+                    writer.newLine ();
+                }
+            }
+        }
+
+        // Never leave a half written index behind
+        Files.move (temp_file.toPath (), index_file.toPath (), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Directories in boot.d, sorted by name
+    List<File> getLevelDirs ()
+    {
+        return (level_dirs);
+    }
+
+    List<Entry> getEntries (File dir)
+    {
+        List<Entry> dir_entries = entries.get (dir);
+        return ((dir_entries == null)? Collections.<Entry>emptyList (): dir_entries);
+    }
+
+    int getChangedCount ()
+    {
+        return (changed_count);
+    }
+
+    static class Entry
+    {
+        final File file;
+        final String path;
+        final String uri;
+        long size;
+        long mtime;
+        String symbolic_name;
+        String version;
+        boolean fragment;
+        boolean unchanged;
+
+        // Set once the boot action on this jar succeeded
+        volatile boolean applied;
+
+        // The bundle installed from this jar, once known
+        volatile Bundle bundle;
+
+        Entry (File file, String path)
+        {
+            this.file = file;
+            this.path = path;
+            this.uri = file.toURI ().toString ();
+        }
+
+        @Override
+        public String toString ()
+        {
+            return (path);
+        }
+    }
+}
+
+// EOF
@@ -17,11 +17,20 @@
 package org.lucidj.bootstrap;
 
 import java.io.File;
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.osgi.framework.*;
 import org.osgi.framework.startlevel.FrameworkStartLevel;
 import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +58,22 @@ import org.slf4j.LoggerFactory;
 //      25-install-cluster-protocols
 //      30-deploy-cluster
 //
+// With bootstrap.parallel=true, the bundles of a directory are installed
+// concurrently and, once the framework reaches the directory start level,
+// the non-fragment bundles of deploy/start directories are resolved at once
+// and started on a bounded pool (bootstrap.parallel.threads). Failures are
+// collected per bundle and never abort the level. Bundles inside a level
+// are independent by contract, but their bundle ids are no longer assigned
+// in file order. The levels are then driven from a bootstrap thread, so the
+// activators never run while the framework event dispatch is held.
+//
+// The boot.d directory is scanned only once, into a BootIndex persisted on
+// the bundle data area. On a warm restart, the jars which are unchanged and
+// already installed are skipped, and the others go through their action as
+// usual. The index is saved once the final start level is reached, holding
+// only the jars whose action succeeded, so a failure or a crash during the
+// boot leaves them to be retried next time.
+//
 public class Bootstrap implements FrameworkListener, BundleListener
 {
     private final static Logger log = LoggerFactory.getLogger (Bootstrap.class);
@@ -57,14 +82,26 @@ public class Bootstrap implements FrameworkListener, BundleListener
     public static final String AUTO_DEPLOY_DIR_VALUE     = "bundle";                      // From AutoProcessor
     public static final String FINAL_STARTLEVEL_PROPERTY = "bootstrap.final.startlevel";
     public static final int    FINAL_STARTLEVEL_VALUE    = 100;
+    public static final String PARALLEL_PROPERTY         = "bootstrap.parallel";
+    public static final String PARALLEL_THREADS_PROPERTY = "bootstrap.parallel.threads";
     public static final String SYSTEM_HOME_PROP          = "system.home";
+    public static final String BOOT_INDEX_FILE           = "boot.d.index";
 
     private BundleContext context;
     private Bundle fw_bundle;
     private FrameworkStartLevel fw_start_level;
     private File bundle_d = null;
+    private BootIndex boot_index;
     private int final_startlevel = FINAL_STARTLEVEL_VALUE;
 
+    // Parallel mode
+    private ExecutorService executor = null;
+    private ExecutorService driver = null;
+    private String pending_dirname = null;
+    private int pending_startlevel;
+    private List<BootIndex.Entry> pending_entries = null;
+    private List<BootIndex.Entry> pending_start = null;
+
     public Bootstrap (BundleContext context)
     {
         this.context = context;
@@ -181,117 +218,319 @@ public class Bootstrap implements FrameworkListener, BundleListener
         // Set default start level for the installed bundles
         fw_start_level.setInitialBundleStartLevel (start_level);
 
-        File[] bundle_list = bundle_dir.listFiles();
+        List<BootIndex.Entry> entries = boot_index.getEntries (bundle_dir);
 
-        for (int i = 0; bundle_list != null && i < bundle_list.length; i++)
+        if (executor != null)
         {
-            String bundle_uri = bundle_list [i].toURI ().toString ();
+            process_dir_parallel (dirname, start_level, action, action_code, entries);
+            return;
+        }
 
+        for (BootIndex.Entry entry: entries)
+        {
             try
             {
-                Bundle bnd = null;
+                if (!is_current (entry, action_code) && get_bundle (entry, action, action_code) != null)
+                {
+                    do_action (entry, action_code);
+                    entry.applied = true;
+                }
+            }
+            catch (BundleException e)
+            {
+                log.error ("Exception installing bundle: {}", entry.uri, e);
+            }
+        }
+
+        if (start_level > 1)
+        {
+            // Just set and let the framework bring the level up
+            fw_start_level.setStartLevel (start_level, (FrameworkListener[])null);
+        }
+
+        log_summary (dirname, entries);
+    }
+
+    private boolean is_install (ActionCode action_code)
+    {
+        return (action_code == ActionCode.ACTION_DEPLOY || action_code == ActionCode.ACTION_INSTALL);
+    }
+
+    // True when the jar is unchanged and was installed on a previous boot, so there's nothing to do
+    private boolean is_current (BootIndex.Entry entry, ActionCode action_code)
+    {
+        return (entry.applied = is_install (action_code)
+            && entry.unchanged
+            && (entry.bundle = context.getBundle (entry.uri)) != null);
+    }
 
-                // TODO: INSTALL FRAGMENTS LAST?
-                if (action_code == ActionCode.ACTION_DEPLOY || action_code == ActionCode.ACTION_INSTALL)
+    // Installs, updates or locates the bundle according to the action, returns null on failure
+    private Bundle get_bundle (BootIndex.Entry entry, String action, ActionCode action_code)
+    {
+        Bundle bnd = context.getBundle (entry.uri);
+
+        // TODO: INSTALL FRAGMENTS LAST?
+        if (is_install (action_code))
+        {
+            try
+            {
+                // An already installed location just gives back the bundle
+                if ((bnd = context.installBundle (entry.uri)) == null)
                 {
-                    try
-                    {
-                        if ((bnd = context.installBundle (bundle_uri)) == null)
-                        {
-                            log.error ("Error installing {}", bundle_uri);
-                            continue;
-                        }
-                    }
-                    catch (BundleException e)
-                    {
-                        if (e.getType() == BundleException.DUPLICATE_BUNDLE_ERROR)
-                        {
-                            log.warn ("Bundle already installed: {}", bundle_uri);
-                        }
-                        else
-                        {
-                            log.error ("Exception installing: {}", bundle_uri, e);
-                        }
-                        continue;
-                    }
+                    log.error ("Error installing {}", entry.uri);
+                }
+            }
+            catch (BundleException e)
+            {
+                if (e.getType() == BundleException.DUPLICATE_BUNDLE_ERROR)
+                {
+                    log.warn ("Bundle already installed: {}", entry.uri);
                 }
-                else if ((bnd = context.getBundle (bundle_uri)) == null)
+                else
                 {
-                    log.error ("Action {} requires existing bundle {}", action, bundle_uri);
-                    continue;
+                    log.error ("Exception installing: {}", entry.uri, e);
                 }
+                return (null);
+            }
+        }
+        else if (bnd == null)
+        {
+            log.error ("Action {} requires existing bundle {}", action, entry.uri);
+        }
+        return (entry.bundle = bnd);
+    }
 
-                switch (action_code)
+    private void do_action (BootIndex.Entry entry, ActionCode action_code)
+        throws BundleException
+    {
+        Bundle bnd = entry.bundle;
+
+        switch (action_code)
+        {
+            case ACTION_DEPLOY:
+            case ACTION_START:
+            {
+                if (!entry.fragment && !is_fragment (bnd))
                 {
-                    case ACTION_DEPLOY:
-                    case ACTION_START:
-                    {
-                        if (!is_fragment (bnd))
-                        {
-                            bnd.start ();
-                        }
-                        break;
-                    }
-                    case ACTION_STARTPOLICY:
-                    {
-                        bnd.start (Bundle.START_ACTIVATION_POLICY);
-                        break;
-                    }
-                    case ACTION_STARTTRANSIENT:
-                    {
-                        bnd.start (Bundle.START_TRANSIENT);
-                        break;
-                    }
-                    case ACTION_UPDATE:
-                    {
-                        bnd.update ();
-                        break;
-                    }
-                    case ACTION_STOP:
-                    {
-                        bnd.stop ();
-                        break;
-                    }
-                    case ACTION_STOPTRANSIENT:
-                    {
-                        bnd.stop (Bundle.STOP_TRANSIENT);
-                        break;
-                    }
-                    case ACTION_UNINSTALL:
-                    {
-                        bnd.uninstall ();
-                        break;
-                    }
+                    bnd.start ();
+                }
+                break;
+            }
+            case ACTION_STARTPOLICY:
+            {
+                bnd.start (Bundle.START_ACTIVATION_POLICY);
+                break;
+            }
+            case ACTION_STARTTRANSIENT:
+            {
+                bnd.start (Bundle.START_TRANSIENT);
+                break;
+            }
+            case ACTION_UPDATE:
+            {
+                bnd.update ();
+                break;
+            }
+            case ACTION_STOP:
+            {
+                bnd.stop ();
+                break;
+            }
+            case ACTION_STOPTRANSIENT:
+            {
+                bnd.stop (Bundle.STOP_TRANSIENT);
+                break;
+            }
+            case ACTION_UNINSTALL:
+            {
+                bnd.uninstall ();
+                break;
+            }
+        }
+    }
+
+    private void process_dir_parallel (String dirname, int start_level, String action,
+                                       ActionCode action_code, List<BootIndex.Entry> entries)
+    {
+        List<String> failures = new ArrayList<> ();
+        List<BootIndex.Entry> pending = new ArrayList<> ();
+        List<Future<Bundle>> installs = new ArrayList<> ();
+
+        //---------------------------------------
+        // Install (or locate) all concurrently
+        //---------------------------------------
+
+        for (BootIndex.Entry entry: entries)
+        {
+            if (!is_current (entry, action_code))
+            {
+                pending.add (entry);
+                installs.add (executor.submit (() -> get_bundle (entry, action, action_code)));
+            }
+        }
+
+        List<BootIndex.Entry> installed = new ArrayList<> ();
+
+        for (int i = 0; i < installs.size (); i++)
+        {
+            try
+            {
+                if (installs.get (i).get () != null)
+                {
+                    installed.add (pending.get (i));
+                }
+                else
+                {
+                    failures.add (pending.get (i).path);
+                }
+            }
+            catch (Exception e)
+            {
+                log.error ("Exception installing bundle: {}", pending.get (i).uri, e);
+                failures.add (pending.get (i).path);
+            }
+        }
+
+        //--------------------------------------------------------------------
+        // Deploy and start are done in parallel, the other actions in order
+        //--------------------------------------------------------------------
+
+        List<BootIndex.Entry> to_start = new ArrayList<> ();
+
+        for (BootIndex.Entry entry: installed)
+        {
+            if (action_code == ActionCode.ACTION_DEPLOY || action_code == ActionCode.ACTION_START)
+            {
+                if (!entry.fragment && !is_fragment (entry.bundle))
+                {
+                    to_start.add (entry);
+                }
+                else
+                {
+                    entry.applied = true;
                 }
+                continue;
+            }
+
+            try
+            {
+                do_action (entry, action_code);
+                entry.applied = true;
             }
             catch (BundleException e)
             {
-                log.error ("Exception installing bundle: {}", bundle_uri, e);
+                log.error ("Exception on bundle {}: {}", action, entry.bundle, e);
+                failures.add (entry.path);
             }
         }
 
-        if (start_level > 1)
+        log_failures (dirname, failures);
+
+        if (start_level > fw_start_level.getStartLevel ())
         {
-            // Just set and let the framework bring the level up
+            // Start them only when the framework gets there, otherwise
+            // start() just marks the bundles and the framework would
+            // activate them one by one
+            pending_dirname = dirname;
+            pending_startlevel = start_level;
+            pending_entries = entries;
+            pending_start = to_start;
             fw_start_level.setStartLevel (start_level, (FrameworkListener[])null);
         }
+        else
+        {
+            start_parallel (dirname, to_start);
+            log_summary (dirname, entries);
+        }
+    }
+
+    private void start_parallel (String dirname, List<BootIndex.Entry> entries)
+    {
+        if (entries.isEmpty ())
+        {
+            return;
+        }
+
+        List<Bundle> bundles = new ArrayList<> ();
 
+        for (BootIndex.Entry entry: entries)
+        {
+            bundles.add (entry.bundle);
+        }
+
+        // Resolve everything at once, instead of one resolve per start
+        fw_bundle.adapt (FrameworkWiring.class).resolveBundles (bundles);
+
+        List<Future<?>> starts = new ArrayList<> ();
+        List<String> failures = new ArrayList<> ();
+
+        for (Bundle bnd: bundles)
+        {
+            starts.add (executor.submit (() ->
+            {
+                bnd.start ();
+                return (null);
+            }));
+        }
+
+        for (int i = 0; i < starts.size (); i++)
+        {
+            try
+            {
+                starts.get (i).get ();
+                entries.get (i).applied = true;
+            }
+            catch (Exception e)
+            {
+                Throwable cause = (e.getCause () != null)? e.getCause (): e;
+                log.error ("Exception starting bundle: {}", bundles.get (i), cause);
+                failures.add (entries.get (i).path);
+            }
+        }
+
+        log_failures (dirname, failures);
+    }
+
+    private void start_pending ()
+    {
+        String dirname = pending_dirname;
+        List<BootIndex.Entry> entries = pending_entries;
+        List<BootIndex.Entry> bundles = pending_start;
+
+        pending_dirname = null;
+        pending_entries = null;
+        pending_start = null;
+
+        start_parallel (dirname, bundles);
+        log_summary (dirname, entries);
+    }
+
+    private void log_failures (String dirname, List<String> failures)
+    {
+        if (!failures.isEmpty ())
+        {
+            log.warn ("[{}] {} bundle(s) failed: {}", dirname, failures.size (), failures);
+        }
+    }
+
+    private void log_summary (String dirname, List<BootIndex.Entry> entries)
+    {
         //---------
         // Summary
         //---------
 
         int active = 0, fragment = 0, resolved = 0, installed = 0;
 
-        for (int i = 0; bundle_list != null && i < bundle_list.length; i++)
+        for (BootIndex.Entry entry: entries)
         {
-            Bundle bnd = context.getBundle (bundle_list [i].toURI ().toString ());
+            Bundle bnd = entry.bundle;
 
-            if (bnd == null)
+            if (bnd == null || bnd.getState () == Bundle.UNINSTALLED)
             {
                 continue;
             }
 
-            log.info ("[{}] {} [{}] {} {} {}", dirname, bundle_list [i].getName(),
+            log.info ("[{}] {} [{}] {} {} {}", dirname, entry.file.getName(),
                 bnd.getBundleId(), bnd.getSymbolicName(), bnd.getVersion(), get_state_string (bnd));
 
             switch (bnd.getState ())
@@ -358,6 +597,40 @@ public class Bootstrap implements FrameworkListener, BundleListener
             }
         }
 
+        String parallel_prop = context.getProperty (PARALLEL_PROPERTY);
+
+        if (parallel_prop != null && Boolean.parseBoolean (parallel_prop.trim ()))
+        {
+            int threads = get_int_start_level (context.getProperty (PARALLEL_THREADS_PROPERTY));
+
+            if (threads <= 0)
+            {
+                threads = Runtime.getRuntime ().availableProcessors ();
+            }
+
+            AtomicInteger counter = new AtomicInteger ();
+            ThreadFactory thread_factory = r ->
+            {
+                Thread thread = new Thread (r, "bootstrap-" + counter.incrementAndGet ());
+                thread.setDaemon (true);
+                return (thread);
+            };
+            executor = Executors.newFixedThreadPool (threads, thread_factory);
+            driver = Executors.newSingleThreadExecutor (r ->
+            {
+                Thread thread = new Thread (r, "bootstrap-driver");
+                thread.setDaemon (true);
+                return (thread);
+            });
+            log.info ("Bootstrap parallel mode with {} threads", threads);
+        }
+
+        // Scan boot.d once, the index tells which jars changed since last boot
+        boot_index = new BootIndex (bundle_d, context.getDataFile (BOOT_INDEX_FILE));
+        boot_index.scan ();
+        log.info ("Boot index: {} directories, {} new or changed jars",
+            boot_index.getLevelDirs ().size (), boot_index.getChangedCount ());
+
         // We are good to go!
         context.addFrameworkListener (this);
         context.addBundleListener (this);
@@ -368,6 +641,18 @@ public class Bootstrap implements FrameworkListener, BundleListener
     public void stop ()
     {
         context.removeFrameworkListener (this);
+
+        if (executor != null)
+        {
+            executor.shutdown ();
+            executor = null;
+        }
+
+        if (driver != null)
+        {
+            driver.shutdown ();
+            driver = null;
+        }
     }
 
     @Override // FrameworkListener
@@ -376,71 +661,101 @@ public class Bootstrap implements FrameworkListener, BundleListener
         if (frameworkEvent.getType () == FrameworkEvent.STARTED
             || frameworkEvent.getType () == FrameworkEvent.STARTLEVEL_CHANGED)
         {
-            int start_level = fw_start_level.getStartLevel ();
+            ExecutorService level_driver = driver;
 
-            if (start_level >= final_startlevel)
+            if (level_driver == null)
             {
-                // No need to track framework anymore
-                stop ();
-
-                // Set default start level for the next bundles installed
-                fw_start_level.setInitialBundleStartLevel (final_startlevel);
-                log.info ("Bootstrap finished with start level {} / {}", final_startlevel, start_level);
+                next_level ();
                 return;
             }
 
-            log.info ("Framework start level: {}", start_level);
+            try
+            {
+                // Parallel starts wait for the activators, which may need framework events
+                level_driver.execute (this::next_level);
+            }
+            catch (RejectedExecutionException ignore)
+            {
+                // Bootstrap already finished
+            };
+        }
+    }
+
+    private void next_level ()
+    {
+        int start_level = fw_start_level.getStartLevel ();
 
-            //------------------------------------------------------------------
-            // Locate next bundle.d start level directory > current start level
-            //------------------------------------------------------------------
+        if (pending_start != null && start_level >= pending_startlevel)
+        {
+            // The level is up, now we can start the bundles in parallel
+            start_pending ();
+        }
 
-            File[] files = bundle_d.listFiles ();
-            File target_level_dir = null;
+        if (start_level >= final_startlevel)
+        {
+            // No need to track framework anymore
+            stop ();
 
-            if (files != null)
+            try
+            {
+                // Only now, with every action done, the jars are known to be current
+                boot_index.save ();
+            }
+            catch (IOException e)
             {
-                // TODO: CHANGE SOMEDAY TO NUMERIC ORDERING
-                // TODO: MERGE EQUAL START-LEVELS
-                Arrays.sort (files);
+                log.warn ("Exception saving boot index", e);
+            }
 
-                for (File file: files)
-                {
-                    int dir_startlevel = get_dir_start_level (file);
+            // Set default start level for the next bundles installed
+            fw_start_level.setInitialBundleStartLevel (final_startlevel);
+            log.info ("Bootstrap finished with start level {} / {}", final_startlevel, start_level);
+            return;
+        }
 
-                    // Locate the first directory whose level is above current start level
-                    if (file.isDirectory() && !file.getName ().endsWith (".jar")
-                        && dir_startlevel != -1
-                        && get_dir_start_level (file) > start_level
-                        && dir_startlevel <= final_startlevel)
-                    {
-                        target_level_dir = file;
-                        break;
-                    }
-                }
+        log.info ("Framework start level: {}", start_level);
+
+        //------------------------------------------------------------------
+        // Locate next bundle.d start level directory > current start level
+        //------------------------------------------------------------------
+
+        File target_level_dir = null;
+
+        // TODO: MERGE EQUAL START-LEVELS
+        for (File file: boot_index.getLevelDirs ())
+        {
+            int dir_startlevel = get_dir_start_level (file);
+
+            // Locate the first directory whose level is above current start level
+            if (!file.getName ().endsWith (".jar")
+                && dir_startlevel != -1
+                && dir_startlevel > start_level
+                && dir_startlevel <= final_startlevel)
+            {
+                target_level_dir = file;
+                break;
             }
+        }
 
-            //--------------------------------------
-            // Process the found bundle.d directory
-            //--------------------------------------
+        //--------------------------------------
+        // Process the found bundle.d directory
+        //--------------------------------------
 
-            if (target_level_dir != null)
+        if (target_level_dir != null)
+        {
+            try
             {
-                try
-                {
-                    process_dir (target_level_dir);
-                }
-                catch (Throwable e)
-                {
-                    log.error ("Exception running System Bootstrap", e);
-                }
+                process_dir (target_level_dir);
             }
-            else
+            catch (Throwable e)
             {
-                // Nothing more to do, set final startlevel
-                fw_start_level.setStartLevel (final_startlevel, (FrameworkListener [])null);
+                log.error ("Exception running System Bootstrap", e);
             }
         }
+        else
+        {
+            // Nothing more to do, set final startlevel
+            fw_start_level.setStartLevel (final_startlevel, (FrameworkListener [])null);
+        }
     }
 }
 
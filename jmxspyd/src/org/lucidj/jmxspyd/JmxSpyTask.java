@@ -27,7 +27,9 @@ import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.TabularData;
 import java.io.*;
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
 import java.util.*;
+import java.util.regex.Pattern;
 
 public class JmxSpyTask implements Task
 {
@@ -37,28 +39,44 @@ public class JmxSpyTask implements Task
     private final static String CMD_GET = "get";        // Machine-friendly
     private final static String CMD_SET = "set";        // Machine-friendly
     private final static String CMD_INVOKE = "invoke";  // Machine-friendly
+    private final static String CMD_SNAPSHOT = "snapshot"; // Machine-friendly
+    private final static String CMD_HISTORY = "history";   // Machine-friendly
+
+    private final static String OPT_AFTER = "after=";   // Listing cursor, the last mbean seen
+    private final static String OPT_LIMIT = "limit=";   // Listing page size
+    private final static String OPT_LAST = "last=";     // History seconds
+
+    private final static int DEFAULT_PAGE_SIZE = 1000;
+
+    // Machine-friendly lines: <status> TAB <mbean> TAB <attribute path> TAB <value>
+    private final static String STATUS_VALUE = "=";
+    private final static String STATUS_ERROR = "!";
 
     private final static String[] valid_commands =
     {
         // Don't forget to keep this ordered!
-        CMD_GET, CMD_INVOKE, CMD_LIST, CMD_SET
+        CMD_GET, CMD_HISTORY, CMD_INVOKE, CMD_LIST, CMD_SET, CMD_SNAPSHOT
     };
 
     private BundleContext context;
     private MBeanServer mbean_server;
+    private MBeanMetadataCache metadata;
+    private MetricSampler sampler;
     private String[] args;
     private PrintStream out;
     private PrintStream err;
 
-    public JmxSpyTask (BundleContext context, MBeanServer mbean_server,
-                       InputStream in, OutputStream out, OutputStream err,
+    public JmxSpyTask (BundleContext context, MBeanServer mbean_server, MBeanMetadataCache metadata,
+                       MetricSampler sampler, InputStream in, OutputStream out, OutputStream err,
                        String name, String... options)
         throws IOException
     {
         this.context = context;
         this.mbean_server = mbean_server;
-        this.out = new PrintStream (out);
-        this.err = new PrintStream (err);
+        this.metadata = metadata;
+        this.sampler = sampler;
+        this.out = new PrintStream (new BufferedOutputStream (out, 16384));
+        this.err = new PrintStream (err, true);
         this.args = AdmindUtil.decodeArgs (in);
     }
 
@@ -78,90 +96,125 @@ public class JmxSpyTask implements Task
         }
     }
 
-    private String display_name (String name)
+    // Quoted for the shell only, with no JMX quoting, so the argument comes back as is
+    private String shell_quote (String arg)
     {
-        //------------------------------------------------------
-        // Filter characters that must be quoted for use by JMX
-        //------------------------------------------------------
+        for (int i = 0; i < arg.length (); i++)
+        {
+            if ("'\"\\ \t\n|<>&$;*?()[]{}`!#~".indexOf (arg.charAt (i)) != -1)
+            {
+                return ("'" + arg.replace ("'", "'\\''") + "'");
+            }
+        }
+        return (arg);
+    }
+
+    // A bare domain (wildcards allowed) lists all its mbeans, otherwise it's an ObjectName pattern
+    private ObjectName get_pattern (String pattern_str)
+        throws MalformedObjectNameException
+    {
+        return (metadata.getObjectName (pattern_str.contains (":")? pattern_str: pattern_str + ":*"));
+    }
 
-        char[] mbean_bad_chars = { '\"', '\n', '\\', '*', '?' };
-        boolean quote_mbean = false;
+    private void list_mbeans (String pattern_str, String after, int limit)
+    {
+        ObjectName pattern;
 
-        for (int i = 0; !quote_mbean && i < mbean_bad_chars.length; i++)
+        try
         {
-            quote_mbean = name.indexOf (mbean_bad_chars [i]) != -1;
+            pattern = get_pattern (pattern_str);
         }
+        catch (MalformedObjectNameException e)
+        {
+            err.println ("Invalid domain or pattern: " + pattern_str);
+            return;
+        }
+
+        // The server does the matching, and we keep only the page we are going to show:
+        // the first 'limit' names after the cursor, using a heap with the greatest on top
+        Comparator<ObjectName> by_name = Comparator.comparing (ObjectName::getCanonicalName);
+        PriorityQueue<ObjectName> page = new PriorityQueue<> (Math.min (limit, 1024) + 1, by_name.reversed ());
+        boolean more = false;
 
-        if (quote_mbean)
+        for (ObjectName name: mbean_server.queryNames (pattern, null))
         {
-            name = ObjectName.quote (name);
+            if (after != null && name.getCanonicalName ().compareTo (after) <= 0)
+            {
+                continue;
+            }
+
+            if (page.size () < limit)
+            {
+                page.add (name);
+            }
+            else
+            {
+                more = true;
+
+                if (by_name.compare (name, page.peek ()) < 0)
+                {
+                    page.poll ();
+                    page.add (name);
+                }
+            }
         }
 
-        //------------------------------------------------------------
-        // Filter characters that we should care for use on the shell
-        //------------------------------------------------------------
+        ObjectName[] names = page.toArray (new ObjectName [page.size ()]);
+        Arrays.sort (names, by_name);
 
-        // This surely will need more work....
-        char[] shell_bad_chars = { ' ', '|', '<', '>', '"', '&', '$' };
-        boolean quote_shell = false;
+        out.println ("#");
+        out.println ("# Available mbeans on: " + pattern.getCanonicalName ());
+        out.println ("# Use 'ladmin jmx <mbean>' to view mbean attributes and operations");
+        out.println ("#");
 
-        for (int i = 0; !quote_shell && i < shell_bad_chars.length; i++)
+        for (ObjectName name: names)
         {
-            quote_shell = name.indexOf (shell_bad_chars [i]) != -1;
+            out.println ("    " + metadata.getDisplayName (name));
         }
 
-        if (quote_shell)
+        if (more)
         {
-            // Quoted name to make easier to just copy/paste on terminal
-            return ("'" + name + "'");
+            out.println ("#");
+            out.println ("# More mbeans available, use 'ladmin jmx list "
+                + shell_quote (pattern_str) + " " + shell_quote (OPT_AFTER + names [names.length - 1].getCanonicalName ())
+                + "' to view the next page");
         }
-        return (name);
     }
 
-    private void list_mbeans (String domain_name_str)
+    // Reads all the given attributes in one go, with the error as value for the failed ones
+    private Map<String, Object> get_attributes (ObjectName object_name, String[] names)
     {
-        Set<ObjectInstance> mbeans;
+        Map<String, Object> values = new HashMap<> ();
 
-        if (domain_name_str == null)
-        {
-            mbeans = mbean_server.queryMBeans (null, null);
-        }
-        else
+        try
         {
-            mbeans = mbean_server.queryMBeans (null, new QueryExp ()
+            for (Attribute attribute: mbean_server.getAttributes (object_name, names).asList ())
             {
-                @Override
-                public boolean apply (ObjectName name)
-                {
-                    return (name != null && domain_name_str.equals (name.getDomain ()));
-                }
-
-                @Override
-                public void setMBeanServer (MBeanServer s)
-                {
-                    // Nop
-                }
-            });
+                values.put (attribute.getName (), attribute.getValue ());
+            }
         }
+        catch (Exception ignore) {};
 
-        List<ObjectInstance> object_instances = new ArrayList<> (mbeans);
-        Collections.sort (object_instances, new Comparator<ObjectInstance> ()
+        for (String name: names)
         {
-            @Override
-            public int compare (ObjectInstance o1, ObjectInstance o2)
+            if (!values.containsKey (name))
             {
-                return (o1.getObjectName ().toString ().compareTo (o2.getObjectName ().toString ()));
+                // Missing attributes failed, this time we get why
+                values.put (name, get_attribute (object_name, name));
             }
-        });
-
-        out.println ("#");
-        out.println ("# Available mbeans on domain: " + domain_name_str);
-        out.println ("# Use 'ladmin jmx <mbean>' to view mbean attributes and operations");
-        out.println ("#");
+        }
+        return (values);
+    }
 
-        for (ObjectInstance mbean: object_instances)
+    private Object get_attribute (ObjectName object_name, String name)
+    {
+        try
+        {
+            return (mbean_server.getAttribute (object_name, name));
+        }
+        catch (Exception e)
         {
-            out.println ("    " + display_name (mbean.getObjectName ().getCanonicalName ()));
+            return ("<<" + e.toString() + ">>");
         }
     }
 
@@ -171,7 +224,7 @@ public class JmxSpyTask implements Task
         ObjectName object_name;
         try
         {
-            object_name = new ObjectName (object_name_str);
+            object_name = metadata.getObjectName (object_name_str);
         }
         catch (MalformedObjectNameException mone)
         {
@@ -179,10 +232,10 @@ public class JmxSpyTask implements Task
             return;
         }
 
-        MBeanInfo mbeanInfo = mbean_server.getMBeanInfo (object_name);
+        MBeanInfo mbeanInfo = metadata.getMBeanInfo (object_name);
 
         out.println ("#");
-        out.println ("# MBean: " + display_name (object_name.getCanonicalName()));
+        out.println ("# MBean: " + metadata.getDisplayName (object_name));
         out.println ("# Available attributes on mbean: " + mbeanInfo.getClassName ());
         if (mbeanInfo.getDescription() != null)
         {
@@ -201,7 +254,7 @@ public class JmxSpyTask implements Task
         ObjectName objectName;
         try
         {
-            objectName = new ObjectName (object_name_str);
+            objectName = metadata.getObjectName (object_name_str);
         }
         catch (MalformedObjectNameException mone)
         {
@@ -209,7 +262,7 @@ public class JmxSpyTask implements Task
             return;
         }
 
-        MBeanInfo mbeanInfo = mbean_server.getMBeanInfo (objectName);
+        MBeanInfo mbeanInfo = metadata.getMBeanInfo (objectName);
         MBeanAttributeInfo[] attributes = mbeanInfo.getAttributes();
         MBeanAttributeInfo attribute = null;
 
@@ -236,42 +289,57 @@ public class JmxSpyTask implements Task
         }
         out.println ("#");
 
-        displayAttribute (objectName, attribute);
+        displayAttribute (attribute, attribute.isReadable ()? get_attribute (objectName, attribute_str): null);
     }
 
     private String parse_type (String type)
     {
-        int arrays = type.lastIndexOf ('[') + 1;
+        return (metadata.getTypeName (type));
+    }
 
-        if (arrays == 0)
-        {
-            return (type);
-        }
+    // Composite keys in type order, which is sorted
+    private Set<String> get_keys (CompositeData data)
+    {
+        return (data.getCompositeType ().keySet ());
+    }
 
-        String name = "imaginary";
+    // The index values of a table row, like 'java.home' on SystemProperties
+    private String get_row_label (TabularData table, CompositeData row)
+    {
+        StringBuilder sb = new StringBuilder ();
 
-        switch (type.charAt (arrays))
+        for (String index_name: table.getTabularType ().getIndexNames ())
         {
-            case 'I': name = "int";     break;
-            case 'Z': name = "boolean"; break;
-            case 'F': name = "float";   break;
-            case 'J': name = "long";    break;
-            case 'S': name = "short";   break;
-            case 'B': name = "byte";    break;
-            case 'D': name = "double";  break;
-            case 'C': name = "char";    break;
-            case 'L':
+            if (sb.length () > 0)
             {
-                name = type.substring (arrays + 1, type.indexOf (';'));
-                break;
+                sb.append (',');
             }
+            sb.append (conv_str (row.get (index_name)));
         }
+        return (sb.toString ());
+    }
+
+    // Table rows sorted by label, each one with its items that are not part of the index
+    private SortedMap<String, Map<String, Object>> get_rows (TabularData table)
+    {
+        SortedMap<String, Map<String, Object>> rows = new TreeMap<> ();
+        List<String> index_names = table.getTabularType ().getIndexNames ();
 
-        while (arrays-- > 0)
+        for (Object value: table.values ())
         {
-            name += "[]";
+            CompositeData row = (CompositeData)value;
+            Map<String, Object> items = new LinkedHashMap<> ();
+
+            for (String key: get_keys (row))
+            {
+                if (!index_names.contains (key))
+                {
+                    items.put (key, row.get (key));
+                }
+            }
+            rows.put (get_row_label (table, row), items);
         }
-        return (name);
+        return (rows);
     }
 
     private String conv_str (Object obj)
@@ -282,24 +350,50 @@ public class JmxSpyTask implements Task
         }
         else if (obj instanceof CompositeData)
         {
-            return ("<<CompositeData not supported yet>>");
+            CompositeData data = (CompositeData)obj;
+            StringBuilder sb = new StringBuilder ();
+
+            for (String key: get_keys (data))
+            {
+                sb.append (sb.length () == 0? "{ ": ", ").append (key).append ('=').append (conv_str (data.get (key)));
+            }
+            return ((sb.length () == 0)? "{}": sb.append (" }").toString ());
         }
         else if (obj instanceof TabularData)
         {
-            return ("<<TabularData not supported yet>>");
+            StringBuilder sb = new StringBuilder ();
+
+            for (Map.Entry<String, Map<String, Object>> row: get_rows ((TabularData)obj).entrySet ())
+            {
+                Collection<Object> items = row.getValue ().values ();
+                sb.append (sb.length () == 0? "{ ": ", ").append (row.getKey ()).append ('=');
+                sb.append ((items.size () == 1)? conv_str (items.iterator ().next ()): conv_str (row.getValue ()));
+            }
+            return ((sb.length () == 0)? "{}": sb.append (" }").toString ());
         }
-        else if (obj instanceof Object[])
+        else if (obj instanceof Map)
         {
-            Object[] obj_list = (Object[])obj;
+            StringBuilder sb = new StringBuilder ();
+
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>)obj).entrySet ())
+            {
+                sb.append (sb.length () == 0? "{ ": ", ").append (entry.getKey ()).append ('=').append (conv_str (entry.getValue ()));
+            }
+            return ((sb.length () == 0)? "{}": sb.append (" }").toString ());
+        }
+        else if (obj.getClass ().isArray ())
+        {
+            // Primitive arrays too
+            int length = Array.getLength (obj);
             String result = "";
 
-            for (int i = 0; i < obj_list.length; i++)
+            for (int i = 0; i < length; i++)
             {
                 if (!result.isEmpty ())
                 {
                     result += ", ";
                 }
-                result += conv_str (obj_list [i]);
+                result += conv_str (Array.get (obj, i));
             }
 
             return ("[ " + result + " ]");
@@ -308,23 +402,586 @@ public class JmxSpyTask implements Task
         return (obj.toString ());
     }
 
-    private void displayAttribute (ObjectName object_name, MBeanAttributeInfo attribute)
+    // Nested open data, one item per line
+    private void print_open_data (String indent, Object value)
     {
-        String name = attribute.getName();
-        Object value = null;
+        if (value instanceof CompositeData)
+        {
+            CompositeData data = (CompositeData)value;
+
+            for (String key: get_keys (data))
+            {
+                print_item (indent, key, data.get (key));
+            }
+        }
+        else if (value instanceof TabularData)
+        {
+            for (Map.Entry<String, Map<String, Object>> row: get_rows ((TabularData)value).entrySet ())
+            {
+                Map<String, Object> items = row.getValue ();
+
+                if (items.size () == 1)
+                {
+                    // Plain key/value table
+                    print_item (indent, row.getKey (), items.values ().iterator ().next ());
+                }
+                else
+                {
+                    out.println (indent + row.getKey () + ":");
+
+                    for (Map.Entry<String, Object> item: items.entrySet ())
+                    {
+                        print_item (indent + "  ", item.getKey (), item.getValue ());
+                    }
+                }
+            }
+        }
+    }
+
+    private void print_item (String indent, String name, Object value)
+    {
+        if (value instanceof CompositeData || value instanceof TabularData)
+        {
+            out.println (indent + name + ":");
+            print_open_data (indent + "  ", value);
+        }
+        else
+        {
+            out.println (indent + name + ": " + conv_str (value));
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+    // Machine-friendly output
+    //-----------------------------------------------------------------------------------------------------------------
+
+    private void escape (StringBuilder sb, String field)
+    {
+        for (int i = 0; i < field.length (); i++)
+        {
+            char ch = field.charAt (i);
+
+            switch (ch)
+            {
+                case '\\': sb.append ("\\\\"); break;
+                case '\t': sb.append ("\\t");  break;
+                case '\n': sb.append ("\\n");  break;
+                case '\r': sb.append ("\\r");  break;
+                default:   sb.append (ch);
+            }
+        }
+    }
+
+    private void emit_line (String status, String object_name, String path, String value)
+    {
+        StringBuilder sb = new StringBuilder (128);
+        sb.append (status).append ('\t');
+        escape (sb, object_name);
+        sb.append ('\t');
+        escape (sb, path);
+        sb.append ('\t');
+        escape (sb, value);
+        out.println (sb);
+    }
+
+    // Flattens open data, arrays and maps into one line per simple value
+    private void emit_value (String object_name, String path, Object value)
+    {
+        if (value instanceof CompositeData)
+        {
+            CompositeData data = (CompositeData)value;
+
+            for (String key: get_keys (data))
+            {
+                emit_value (object_name, path + "." + key, data.get (key));
+            }
+        }
+        else if (value instanceof TabularData)
+        {
+            for (Map.Entry<String, Map<String, Object>> row: get_rows ((TabularData)value).entrySet ())
+            {
+                Map<String, Object> items = row.getValue ();
+                String row_path = path + "[" + row.getKey () + "]";
+
+                if (items.size () == 1)
+                {
+                    emit_value (object_name, row_path, items.values ().iterator ().next ());
+                }
+                else
+                {
+                    for (Map.Entry<String, Object> item: items.entrySet ())
+                    {
+                        emit_value (object_name, row_path + "." + item.getKey (), item.getValue ());
+                    }
+                }
+            }
+        }
+        else if (value != null && value.getClass ().isArray ())
+        {
+            for (int i = 0; i < Array.getLength (value); i++)
+            {
+                emit_value (object_name, path + "[" + i + "]", Array.get (value, i));
+            }
+        }
+        else
+        {
+            emit_line (STATUS_VALUE, object_name, path, String.valueOf (value));
+        }
+    }
 
-        if (attribute.isReadable ())
+    // Attribute path: the attribute name, optionally followed by '.item' to pick composite items
+    private String get_attribute_name (String path)
+    {
+        int dot = path.indexOf ('.');
+        return ((dot == -1)? path: path.substring (0, dot));
+    }
+
+    private Object get_item (Object value, String path)
+    {
+        int dot = path.indexOf ('.');
+
+        while (dot != -1)
+        {
+            int next = path.indexOf ('.', dot + 1);
+            String key = path.substring (dot + 1, (next == -1)? path.length (): next);
+
+            if (!(value instanceof CompositeData) || !((CompositeData)value).containsKey (key))
+            {
+                throw new IllegalArgumentException ("No item '" + key + "' on " + path);
+            }
+            value = ((CompositeData)value).get (key);
+            dot = next;
+        }
+        return (value);
+    }
+
+    private String get_error (Throwable e)
+    {
+        // Show what the mbean threw, not the wrapping
+        while ((e instanceof MBeanException || e instanceof ReflectionException
+                || e instanceof RuntimeOperationsException || e instanceof RuntimeMBeanException)
+               && e.getCause () != null)
+        {
+            e = e.getCause ();
+        }
+        return (e.toString ());
+    }
+
+    // get <mbean> <attribute path> [<mbean> <attribute path>]...
+    private void get (List<String> targets)
+    {
+        if (targets.isEmpty () || targets.size () % 2 != 0)
+        {
+            emit_line (STATUS_ERROR, "", "", "Usage: get <mbean> <attribute> [<mbean> <attribute>]...");
+            return;
+        }
+
+        // All the attributes wanted from each mbean, to read them in one round
+        Map<String, Set<String>> wanted = new LinkedHashMap<> ();
+
+        for (int i = 0; i < targets.size (); i += 2)
+        {
+            wanted.computeIfAbsent (targets.get (i), k -> new LinkedHashSet<> ())
+                .add (get_attribute_name (targets.get (i + 1)));
+        }
+
+        Map<String, Map<String, Object>> values = new HashMap<> ();
+        Map<String, String> errors = new HashMap<> ();
+
+        for (Map.Entry<String, Set<String>> entry: wanted.entrySet ())
         {
             try
             {
-                value = mbean_server.getAttribute (object_name, name);
+                ObjectName name = metadata.getObjectName (entry.getKey ());
+                Set<String> attributes = entry.getValue ();
+                Map<String, Object> mbean_values = new HashMap<> ();
+
+                for (Attribute attribute: mbean_server.getAttributes (name, attributes.toArray (new String [attributes.size ()])).asList ())
+                {
+                    mbean_values.put (attribute.getName (), attribute.getValue ());
+                }
+                values.put (entry.getKey (), mbean_values);
             }
             catch (Exception e)
             {
-                value = "<<" + e.toString() + ">>";
+                errors.put (entry.getKey (), get_error (e));
             }
         }
-        else
+
+        // Answer in the order asked
+        for (int i = 0; i < targets.size (); i += 2)
+        {
+            String object_name = targets.get (i);
+            String path = targets.get (i + 1);
+            String attribute_name = get_attribute_name (path);
+            Map<String, Object> mbean_values = values.get (object_name);
+            Object value;
+
+            if (mbean_values == null)
+            {
+                emit_line (STATUS_ERROR, object_name, path, errors.get (object_name));
+                continue;
+            }
+
+            if (mbean_values.containsKey (attribute_name))
+            {
+                value = mbean_values.get (attribute_name);
+            }
+            else
+            {
+                try
+                {
+                    // Left out of the bulk read, either it failed or the mbean
+                    // skips it there. Read it alone, for the value or the reason.
+                    value = mbean_server.getAttribute (metadata.getObjectName (object_name), attribute_name);
+                    mbean_values.put (attribute_name, value);
+                }
+                catch (Exception e)
+                {
+                    emit_line (STATUS_ERROR, object_name, path, get_error (e));
+                    continue;
+                }
+            }
+
+            try
+            {
+                emit_value (object_name, path, get_item (value, path));
+            }
+            catch (IllegalArgumentException e)
+            {
+                emit_line (STATUS_ERROR, object_name, path, e.getMessage ());
+            }
+        }
+    }
+
+    private Object decode_scalar (String type, String value)
+    {
+        switch (type)
+        {
+            case "java.lang.String":    return (value);
+            case "int":
+            case "java.lang.Integer":   return (Integer.valueOf (value.trim ()));
+            case "long":
+            case "java.lang.Long":      return (Long.valueOf (value.trim ()));
+            case "short":
+            case "java.lang.Short":     return (Short.valueOf (value.trim ()));
+            case "byte":
+            case "java.lang.Byte":      return (Byte.valueOf (value.trim ()));
+            case "float":
+            case "java.lang.Float":     return (Float.valueOf (value.trim ()));
+            case "double":
+            case "java.lang.Double":    return (Double.valueOf (value.trim ()));
+            case "boolean":
+            case "java.lang.Boolean":
+            {
+                if (!value.trim ().equalsIgnoreCase ("true") && !value.trim ().equalsIgnoreCase ("false"))
+                {
+                    throw new IllegalArgumentException ("Not a boolean: " + value);
+                }
+                return (Boolean.valueOf (value.trim ()));
+            }
+            case "char":
+            case "java.lang.Character":
+            {
+                if (value.length () != 1)
+                {
+                    throw new IllegalArgumentException ("Not a char: " + value);
+                }
+                return (value.charAt (0));
+            }
+            case "javax.management.ObjectName":
+            {
+                try
+                {
+                    return (new ObjectName (value));
+                }
+                catch (MalformedObjectNameException e)
+                {
+                    throw new IllegalArgumentException ("Not an object name: " + value);
+                }
+            }
+        }
+        throw new IllegalArgumentException ("Unsupported type: " + parse_type (type));
+    }
+
+    private Class<?> get_component_class (String name)
+        throws ClassNotFoundException
+    {
+        switch (name)
+        {
+            case "int":     return (int.class);
+            case "long":    return (long.class);
+            case "short":   return (short.class);
+            case "byte":    return (byte.class);
+            case "float":   return (float.class);
+            case "double":  return (double.class);
+            case "boolean": return (boolean.class);
+            case "char":    return (char.class);
+        }
+        return (Class.forName (name));
+    }
+
+    // Decodes a string argument into the given JMX type, arrays as comma separated values
+    private Object decode (String type, String value)
+    {
+        if (type.lastIndexOf ('[') != 0)
+        {
+            // Scalar, multidimensional arrays are left out
+            return (decode_scalar (type, value));
+        }
+
+        String component = parse_type (type);
+        component = component.substring (0, component.length () - 2);
+        String[] elements = value.isEmpty ()? new String [0]: value.split (",", -1);
+        Object array;
+
+        try
+        {
+            array = Array.newInstance (get_component_class (component), elements.length);
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IllegalArgumentException ("Unsupported type: " + parse_type (type));
+        }
+
+        for (int i = 0; i < elements.length; i++)
+        {
+            Array.set (array, i, decode_scalar (component, elements [i]));
+        }
+        return (array);
+    }
+
+    // set <mbean> <attribute> <value>
+    private void set (List<String> arguments)
+    {
+        if (arguments.size () != 3)
+        {
+            emit_line (STATUS_ERROR, "", "", "Usage: set <mbean> <attribute> <value>");
+            return;
+        }
+
+        String object_name = arguments.get (0);
+        String attribute_name = arguments.get (1);
+
+        try
+        {
+            ObjectName name = metadata.getObjectName (object_name);
+            MBeanAttributeInfo attribute = null;
+
+            for (MBeanAttributeInfo info: metadata.getMBeanInfo (name).getAttributes ())
+            {
+                if (info.getName ().equals (attribute_name))
+                {
+                    attribute = info;
+                    break;
+                }
+            }
+
+            if (attribute == null || !attribute.isWritable ())
+            {
+                emit_line (STATUS_ERROR, object_name, attribute_name,
+                    (attribute == null)? "Attribute not found": "Attribute is read-only");
+                return;
+            }
+
+            Object value = decode (attribute.getType (), arguments.get (2));
+            mbean_server.setAttribute (name, new Attribute (attribute_name, value));
+            emit_value (object_name, attribute_name, value);
+        }
+        catch (Exception e)
+        {
+            emit_line (STATUS_ERROR, object_name, attribute_name,
+                (e instanceof IllegalArgumentException)? e.getMessage (): get_error (e));
+        }
+    }
+
+    // invoke <mbean> <operation> [<argument>]...
+    private void invoke (List<String> arguments)
+    {
+        if (arguments.size () < 2)
+        {
+            emit_line (STATUS_ERROR, "", "", "Usage: invoke <mbean> <operation> [<argument>]...");
+            return;
+        }
+
+        String object_name = arguments.get (0);
+        String operation_name = arguments.get (1);
+        List<String> values = arguments.subList (2, arguments.size ());
+        String decode_error = "No operation with " + values.size () + " arguments";
+
+        try
+        {
+            ObjectName name = metadata.getObjectName (object_name);
+
+            List<MBeanOperationInfo> candidates = new ArrayList<> ();
+
+            for (MBeanOperationInfo operation: metadata.getMBeanInfo (name).getOperations ())
+            {
+                if (operation.getName ().equals (operation_name) && operation.getSignature ().length == values.size ())
+                {
+                    candidates.add (operation);
+                }
+            }
+
+            // Overloads with fewer array parameters first, so '1' is a long before being a long[]
+            candidates.sort (Comparator.comparingLong (operation ->
+                Arrays.stream (operation.getSignature ()).filter (param -> param.getType ().startsWith ("[")).count ()));
+
+            // The first overload which takes all the arguments wins
+            for (MBeanOperationInfo operation: candidates)
+            {
+                MBeanParameterInfo[] params = operation.getSignature ();
+                Object[] params_values = new Object [params.length];
+                String[] signature = new String [params.length];
+
+                try
+                {
+                    for (int i = 0; i < params.length; i++)
+                    {
+                        signature [i] = params [i].getType ();
+                        params_values [i] = decode (signature [i], values.get (i));
+                    }
+                }
+                catch (IllegalArgumentException e)
+                {
+                    decode_error = e.getMessage ();
+                    continue;
+                }
+
+                emit_value (object_name, operation_name, mbean_server.invoke (name, operation_name, params_values, signature));
+                return;
+            }
+            emit_line (STATUS_ERROR, object_name, operation_name, decode_error);
+        }
+        catch (Exception e)
+        {
+            emit_line (STATUS_ERROR, object_name, operation_name, get_error (e));
+        }
+    }
+
+    private String format_number (double value)
+    {
+        // Counters and sizes without the exponent notation
+        if (value == Math.rint (value) && Math.abs (value) < 1e15)
+        {
+            return (Long.toString ((long)value));
+        }
+        return (Double.toString (value));
+    }
+
+    // history [<metric>...] [last=<seconds>], metric names may use '*'
+    private void history (List<String> arguments)
+    {
+        List<MetricRing> rings = (sampler == null)? Collections.<MetricRing>emptyList (): sampler.getRings ();
+        List<String> patterns = new ArrayList<> ();
+        long since = 0;
+
+        if (rings.isEmpty ())
+        {
+            emit_line (STATUS_ERROR, "", "", "Metric sampler not running");
+            return;
+        }
+
+        for (String arg: arguments)
+        {
+            if (arg.startsWith (OPT_LAST))
+            {
+                try
+                {
+                    since = System.currentTimeMillis () - Long.parseLong (arg.substring (OPT_LAST.length ())) * 1000;
+                }
+                catch (NumberFormatException e)
+                {
+                    emit_line (STATUS_ERROR, "", "", "Invalid seconds: " + arg);
+                    return;
+                }
+            }
+            else
+            {
+                patterns.add (Pattern.quote (arg).replace ("*", "\\E.*\\Q"));
+            }
+        }
+
+        // One line per sample: the metric, the time in ms and the value
+        for (MetricRing ring: rings)
+        {
+            boolean selected = patterns.isEmpty ();
+
+            for (int i = 0; !selected && i < patterns.size (); i++)
+            {
+                selected = ring.getName ().matches (patterns.get (i));
+            }
+
+            if (selected)
+            {
+                for (MetricRing.Sample sample: ring.getSamples (since))
+                {
+                    emit_line (STATUS_VALUE, ring.getName (), Long.toString (sample.timestamp), format_number (sample.value));
+                }
+            }
+        }
+    }
+
+    // Reads every readable attribute of each mbean in one getAttributes round
+    private void snapshot (List<String> patterns)
+    {
+        for (String pattern_str: patterns)
+        {
+            Set<ObjectName> names;
+
+            try
+            {
+                names = mbean_server.queryNames (get_pattern (pattern_str), null);
+            }
+            catch (MalformedObjectNameException e)
+            {
+                emit_line (STATUS_ERROR, pattern_str, "", e.toString ());
+                continue;
+            }
+
+            for (ObjectName name: names)
+            {
+                String object_name = name.getCanonicalName ();
+                List<String> readable = new ArrayList<> ();
+
+                try
+                {
+                    for (MBeanAttributeInfo attribute: metadata.getMBeanInfo (name).getAttributes ())
+                    {
+                        if (attribute.isReadable ())
+                        {
+                            readable.add (attribute.getName ());
+                        }
+                    }
+
+                    AttributeList values = mbean_server.getAttributes (name, readable.toArray (new String [readable.size ()]));
+
+                    for (Attribute attribute: values.asList ())
+                    {
+                        emit_value (object_name, attribute.getName (), attribute.getValue ());
+                        readable.remove (attribute.getName ());
+                    }
+
+                    for (String missing: readable)
+                    {
+                        // Not worth a second round just for the reason
+                        emit_line (STATUS_ERROR, object_name, missing, "unavailable");
+                    }
+                }
+                catch (Exception e)
+                {
+                    // Likely unregistered meanwhile
+                    emit_line (STATUS_ERROR, object_name, "", e.toString ());
+                }
+            }
+        }
+    }
+
+    private void displayAttribute (MBeanAttributeInfo attribute, Object value)
+    {
+        String name = attribute.getName();
+
+        if (!attribute.isReadable ())
         {
             value = "(not readable)";
         }
@@ -337,15 +994,28 @@ public class JmxSpyTask implements Task
         }
         out.println ("     Type: " + parse_type (attribute.getType ()) + (attribute.isWritable () ? " (Read/Write)" : " (Read-only)"));
 
-        if (value.getClass ().isArray ())
+        if (value instanceof Object[])
         {
             Object[] array = (Object[])value;
 
             for (int i = 0; i < array.length; i++)
             {
-                out.println (" Value[" + i + "]: " + conv_str (array [i]));
+                if (array [i] instanceof CompositeData || array [i] instanceof TabularData)
+                {
+                    out.println (" Value[" + i + "]:");
+                    print_open_data ("      ", array [i]);
+                }
+                else
+                {
+                    out.println (" Value[" + i + "]: " + conv_str (array [i]));
+                }
             }
         }
+        else if (value instanceof CompositeData || value instanceof TabularData)
+        {
+            out.println ("    Value:");
+            print_open_data ("      ", value);
+        }
         else
         {
             out.println ("    Value: " + conv_str (value));
@@ -354,9 +1024,23 @@ public class JmxSpyTask implements Task
 
     private void displayAttributes (ObjectName object_name, MBeanInfo mbean_info)
     {
-        for (MBeanAttributeInfo attribute : mbean_info.getAttributes ())
+        MBeanAttributeInfo[] attributes = mbean_info.getAttributes ();
+        List<String> readable = new ArrayList<> ();
+
+        for (MBeanAttributeInfo attribute: attributes)
+        {
+            if (attribute.isReadable ())
+            {
+                readable.add (attribute.getName ());
+            }
+        }
+
+        // One round trip for all the values
+        Map<String, Object> values = get_attributes (object_name, readable.toArray (new String [readable.size ()]));
+
+        for (MBeanAttributeInfo attribute : attributes)
         {
-            displayAttribute (object_name, attribute);
+            displayAttribute (attribute, values.get (attribute.getName ()));
         }
     }
 
@@ -412,59 +1096,115 @@ public class JmxSpyTask implements Task
         }
     }
 
+    private int get_limit (String value)
+    {
+        try
+        {
+            return (Math.max (1, Integer.parseInt (value)));
+        }
+        catch (NumberFormatException e)
+        {
+            err.println ("Invalid limit: " + value);
+            return (DEFAULT_PAGE_SIZE);
+        }
+    }
+
     @Override // Task
     public boolean run ()
         throws Exception
     {
         String command = CMD_LIST;
-        String argument = null;
+        List<String> arguments = new ArrayList<> (Arrays.asList (args));
+        String after = null;
+        int limit = DEFAULT_PAGE_SIZE;
 
-        if (args.length == 1)
+        if (!arguments.isEmpty () && Arrays.binarySearch (valid_commands, arguments.get (0)) >= 0)
         {
-            int command_index = Arrays.binarySearch (valid_commands, args [0]);
+            command = arguments.remove (0);
+        }
 
-            if (command_index < 0)
+        // Listing options may come anywhere after the command
+        for (Iterator<String> it = arguments.iterator (); command.equals (CMD_LIST) && it.hasNext ();)
+        {
+            String arg = it.next ();
+
+            if (arg.startsWith (OPT_AFTER))
             {
-                command = CMD_LIST;
-                argument = args [0];
+                after = arg.substring (OPT_AFTER.length ());
+                it.remove ();
             }
-            else
+            else if (arg.startsWith (OPT_LIMIT))
             {
-                command = args [0];
+                limit = get_limit (arg.substring (OPT_LIMIT.length ()));
+                it.remove ();
             }
         }
-        else if (args.length > 1)
-        {
-            command = args [0];
-            argument = args [1];
-        }
 
-        switch (command)
+        String argument = arguments.isEmpty ()? null: arguments.get (0);
+
+        try
         {
-            case CMD_LIST:
+            switch (command)
             {
-                if (argument == null)
+                case CMD_LIST:
                 {
-                    list_domains();
-                }
-                else if (argument.contains(":"))
-                {
-                    if (args.length == 3)
+                    if (argument == null)
+                    {
+                        list_domains();
+                    }
+                    else if (argument.contains(":") && !get_pattern (argument).isPattern ())
                     {
-                        show_attribute (argument, args [2]);
+                        if (arguments.size () == 2)
+                        {
+                            show_attribute (argument, arguments.get (1));
+                        }
+                        else
+                        {
+                            show_mbean (argument);
+                        }
                     }
                     else
                     {
-                        show_mbean (argument);
+                        list_mbeans (argument, after, limit);
                     }
+                    break;
                 }
-                else
+                case CMD_GET:
                 {
-                    list_mbeans (argument);
+                    get (arguments);
+                    break;
+                }
+                case CMD_SET:
+                {
+                    set (arguments);
+                    break;
+                }
+                case CMD_INVOKE:
+                {
+                    invoke (arguments);
+                    break;
+                }
+                case CMD_SNAPSHOT:
+                {
+                    snapshot (arguments);
+                    break;
+                }
+                case CMD_HISTORY:
+                {
+                    history (arguments);
+                    break;
                 }
-                break;
             }
         }
+        catch (MalformedObjectNameException e)
+        {
+            err.println ("Invalid object name: " + argument);
+        }
+        finally
+        {
+            out.flush ();
+            err.flush ();
+        }
         return (true);
     }
 }
@@ -38,6 +38,8 @@ class JmxSpyd implements TaskProvider
     private BundleContext context;
 
     private MBeanServer mbean_server;
+    private MBeanMetadataCache metadata;
+    private MetricSampler sampler;
     private ServiceRegistration<MBeanServer> mbean_server_reg;
     private ServiceRegistration<TaskProvider> task_provider_reg;
 
@@ -50,7 +52,7 @@ class JmxSpyd implements TaskProvider
     public Task createTask (InputStream in, OutputStream out, OutputStream err, String locator, String... options)
         throws IOException
     {
-        return (new JmxSpyTask (context, mbean_server, in, out, err, locator, options));
+        return (new JmxSpyTask (context, mbean_server, metadata, sampler, in, out, err, locator, options));
     }
 
     public boolean start ()
@@ -60,6 +62,14 @@ class JmxSpyd implements TaskProvider
         mbean_server_reg = context.registerService (MBeanServer.class, mbean_server, null);
         // TODO: TEST FOR ALREADY REGISTERED SERVER (!?)
 
+        // MBeanInfo and friends are kept until the mbean is registered again or goes away
+        metadata = new MBeanMetadataCache (mbean_server);
+        metadata.start ();
+
+        // Keep the recent history of the main vm metrics
+        sampler = new MetricSampler (context, mbean_server);
+        sampler.start ();
+
         // Register as TaskProvider for 'jmx'
         Dictionary<String, Object> props = new Hashtable<>();
         props.put (TaskProvider.NAME_FILTER, "jmx");
@@ -73,6 +83,10 @@ class JmxSpyd implements TaskProvider
     {
         task_provider_reg.unregister ();
         task_provider_reg = null;
+        sampler.stop ();
+        sampler = null;
+        metadata.stop ();
+        metadata = null;
         mbean_server_reg.unregister ();
         mbean_server_reg = null;
         mbean_server = null;
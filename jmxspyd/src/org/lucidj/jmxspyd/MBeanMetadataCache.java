@@ -0,0 +1,255 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.jmxspyd;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.relation.MBeanServerNotificationFilter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Metadata shared by all JmxSpyTask runs: MBeanInfo, display names, parsed
+// object names and type names. Entries of an mbean are dropped when it is
+// registered or unregistered, as told by the MBeanServerDelegate, so every
+// ladmin jmx call after the first costs only the attribute reads.
+//
+// MBeanInfo is cached only for mbeans which declare it immutable on their
+// immutableInfo descriptor field, since only their registration is tracked.
+// Dynamic and model mbeans which don't tell are asked every time.
+class MBeanMetadataCache implements NotificationListener
+{
+    private final static Logger log = LoggerFactory.getLogger (MBeanMetadataCache.class);
+
+    private final static int MAX_PARSED_NAMES = 4096;   // The strings come from the command line
+
+    private MBeanServer mbean_server;
+    private volatile boolean tracking;
+
+    private final Map<ObjectName, MBeanInfo> mbean_infos = new ConcurrentHashMap<> ();
+    private final Map<ObjectName, String> display_names = new ConcurrentHashMap<> ();
+    private final Map<String, ObjectName> parsed_names = new ConcurrentHashMap<> ();
+    private final Map<String, String> type_names = new ConcurrentHashMap<> ();
+
+    public MBeanMetadataCache (MBeanServer mbean_server)
+    {
+        this.mbean_server = mbean_server;
+    }
+
+    public boolean start ()
+    {
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter ();
+        filter.enableAllObjectNames ();
+
+        try
+        {
+            mbean_server.addNotificationListener (MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+            tracking = true;
+            return (true);
+        }
+        catch (InstanceNotFoundException e)
+        {
+            log.warn ("Unable to track mbean registrations, metadata cache disabled", e);
+            return (false);
+        }
+    }
+
+    public void stop ()
+    {
+        tracking = false;
+
+        try
+        {
+            mbean_server.removeNotificationListener (MBeanServerDelegate.DELEGATE_NAME, this);
+        }
+        catch (Exception ignore) {};
+        invalidate_all ();
+    }
+
+    private void invalidate_all ()
+    {
+        mbean_infos.clear ();
+        display_names.clear ();
+        parsed_names.clear ();
+    }
+
+    @Override // NotificationListener
+    public void handleNotification (Notification notification, Object handback)
+    {
+        if (notification instanceof MBeanServerNotification)
+        {
+            // Registered or unregistered, whatever we knew about it is stale
+            ObjectName name = ((MBeanServerNotification)notification).getMBeanName ();
+            mbean_infos.remove (name);
+            display_names.remove (name);
+        }
+    }
+
+    public MBeanInfo getMBeanInfo (ObjectName name)
+        throws InstanceNotFoundException, IntrospectionException, ReflectionException
+    {
+        MBeanInfo info = mbean_infos.get (name);
+
+        if (info == null)
+        {
+            info = mbean_server.getMBeanInfo (name);
+
+            // Without the registration events we can't tell when it's stale
+            if (tracking && "true".equalsIgnoreCase (String.valueOf (info.getDescriptor ().getFieldValue ("immutableInfo"))))
+            {
+                mbean_infos.put (name, info);
+
+                if (!mbean_server.isRegistered (name))
+                {
+                    // Unregistered while we were fetching, the notification came before the put
+                    mbean_infos.remove (name);
+                }
+            }
+        }
+        return (info);
+    }
+
+    public ObjectName getObjectName (String name)
+        throws MalformedObjectNameException
+    {
+        ObjectName object_name = parsed_names.get (name);
+
+        if (object_name == null)
+        {
+            object_name = new ObjectName (name);
+
+            if (parsed_names.size () >= MAX_PARSED_NAMES)
+            {
+                // Nothing fancy, just keep it bounded
+                parsed_names.clear ();
+            }
+            parsed_names.put (name, object_name);
+        }
+        return (object_name);
+    }
+
+    public String getDisplayName (ObjectName name)
+    {
+        return (display_names.computeIfAbsent (name, k -> make_display_name (k.getCanonicalName ())));
+    }
+
+    public String getTypeName (String type)
+    {
+        // Types are a small set, they never go stale
+        return (type_names.computeIfAbsent (type, MBeanMetadataCache::make_type_name));
+    }
+
+    // The name quoted as needed for JMX and then for the shell, scanned once
+    static String make_display_name (String name)
+    {
+        boolean quote_mbean = false;
+        boolean quote_shell = false;
+
+        for (int i = 0; i < name.length (); i++)
+        {
+            switch (name.charAt (i))
+            {
+                // Characters that must be quoted for use by JMX
+                case '\"':
+                case '\n':
+                case '\\':
+                case '*':
+                case '?':
+                {
+                    quote_mbean = true;
+                    break;
+                }
+
+                // Characters that we should care for use on the shell.
+                // This surely will need more work....
+                case ' ':
+                case '|':
+                case '<':
+                case '>':
+                case '&':
+                case '$':
+                {
+                    quote_shell = true;
+                    break;
+                }
+            }
+        }
+
+        if (quote_mbean)
+        {
+            // The quotes added are also bad for the shell
+            name = ObjectName.quote (name);
+            quote_shell = true;
+        }
+
+        if (quote_shell)
+        {
+            // Quoted name to make easier to just copy/paste on terminal
+            return ("'" + name + "'");
+        }
+        return (name);
+    }
+
+    // Java type names from their JVM form, like long[] for [J
+    static String make_type_name (String type)
+    {
+        int arrays = type.lastIndexOf ('[') + 1;
+
+        if (arrays == 0)
+        {
+            return (type);
+        }
+
+        String name = "imaginary";
+
+        switch (type.charAt (arrays))
+        {
+            case 'I': name = "int";     break;
+            case 'Z': name = "boolean"; break;
+            case 'F': name = "float";   break;
+            case 'J': name = "long";    break;
+            case 'S': name = "short";   break;
+            case 'B': name = "byte";    break;
+            case 'D': name = "double";  break;
+            case 'C': name = "char";    break;
+            case 'L':
+            {
+                name = type.substring (arrays + 1, type.indexOf (';'));
+                break;
+            }
+        }
+
+        while (arrays-- > 0)
+        {
+            name += "[]";
+        }
+        return (name);
+    }
+}
+
+// EOF
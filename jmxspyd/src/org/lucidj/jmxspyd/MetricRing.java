@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.jmxspyd;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Fixed-size time-series ring for one metric. The samples live on a memory
+// mapped file, so they cost no heap and survive a restart. Layout:
+//
+//    header: magic (int), slots (int), samples written (long)
+//    slots:  timestamp in ms (long), value (double)
+//
+// The oldest sample is overwritten when the ring is full. If the file can't
+// be used, the ring is kept in memory.
+class MetricRing
+{
+    private final static int MAGIC       = 0x4A4D5852;      // "JMXR"
+    private final static int HEADER_SIZE = 16;
+    private final static int SAMPLE_SIZE = 16;
+
+    private final String name;
+    private final String source;
+    private final int slots;
+    private final ByteBuffer buffer;
+    private long count;
+
+    private MetricRing (String name, String source, int slots, ByteBuffer buffer)
+    {
+        this.name = name;
+        this.source = source;
+        this.slots = slots;
+        this.buffer = buffer;
+    }
+
+    static MetricRing open (String name, String source, File file, int slots)
+        throws IOException
+    {
+        int size = HEADER_SIZE + slots * SAMPLE_SIZE;
+        ByteBuffer buffer;
+
+        if (file == null)
+        {
+            buffer = ByteBuffer.allocate (size);
+        }
+        else
+        {
+            try (FileChannel channel = FileChannel.open (file.toPath (),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                if (channel.size () != size)
+                {
+                    // Ring size changed, start over
+                    channel.truncate (0);
+                }
+
+                // The mapping stays valid after the channel is closed
+                buffer = channel.map (FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        MetricRing ring = new MetricRing (name, source, slots, buffer);
+
+        if (buffer.getInt (0) == MAGIC && buffer.getInt (4) == slots)
+        {
+            ring.count = buffer.getLong (8);
+        }
+        else
+        {
+            buffer.putInt (0, MAGIC);
+            buffer.putInt (4, slots);
+            buffer.putLong (8, 0);
+        }
+        return (ring);
+    }
+
+    public String getName ()
+    {
+        return (name);
+    }
+
+    public String getSource ()
+    {
+        return (source);
+    }
+
+    public synchronized void add (long timestamp, double value)
+    {
+        int pos = HEADER_SIZE + (int)(count % slots) * SAMPLE_SIZE;
+
+        buffer.putLong (pos, timestamp);
+        buffer.putDouble (pos + 8, value);
+
+        // The sample is in place before it's counted
+        buffer.putLong (8, ++count);
+    }
+
+    // Samples taken at or after 'since', oldest first
+    public synchronized List<Sample> getSamples (long since)
+    {
+        int available = (int)Math.min (count, slots);
+        List<Sample> samples = new ArrayList<> (available);
+
+        for (long i = count - available; i < count; i++)
+        {
+            int pos = HEADER_SIZE + (int)(i % slots) * SAMPLE_SIZE;
+            long timestamp = buffer.getLong (pos);
+
+            if (timestamp >= since)
+            {
+                samples.add (new Sample (timestamp, buffer.getDouble (pos + 8)));
+            }
+        }
+        return (samples);
+    }
+
+    public synchronized void flush ()
+    {
+        if (buffer instanceof MappedByteBuffer)
+        {
+            ((MappedByteBuffer)buffer).force ();
+        }
+    }
+
+    static class Sample
+    {
+        final long timestamp;
+        final double value;
+
+        Sample (long timestamp, double value)
+        {
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.jmxspyd;
+
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Samples a set of mbean attributes at a fixed rate into a MetricRing per
+// metric, so the recent history is there to look at after a latency spike.
+// Metrics are configured as a ';' separated list of:
+//
+//    <metric name>=<mbean>/<attribute>[.<composite item>]
+//
+// When <mbean> is a pattern, every matching mbean gets its own metric, named
+// after its 'name' key, like gc.count.G1_Young_Generation. The attributes of
+// each mbean are read together in one getAttributes call.
+class MetricSampler implements Runnable
+{
+    private final static Logger log = LoggerFactory.getLogger (MetricSampler.class);
+
+    public final static String INTERVAL_PROPERTY = "lucidj.jmxspyd.sampler.interval";
+    public final static String SLOTS_PROPERTY    = "lucidj.jmxspyd.sampler.slots";
+    public final static String METRICS_PROPERTY  = "lucidj.jmxspyd.sampler.metrics";
+
+    private final static int DEFAULT_INTERVAL = 1000;     // 1 second, 0 disables the sampler
+    private final static int DEFAULT_SLOTS    = 1800;     // 30 minutes at the default interval
+    private final static String HISTORY_DIR   = "history";
+
+    private final static String DEFAULT_METRICS =
+        "heap.used=java.lang:type=Memory/HeapMemoryUsage.used;" +
+        "heap.committed=java.lang:type=Memory/HeapMemoryUsage.committed;" +
+        "nonheap.used=java.lang:type=Memory/NonHeapMemoryUsage.used;" +
+        "gc.count=java.lang:type=GarbageCollector,*/CollectionCount;" +
+        "gc.time=java.lang:type=GarbageCollector,*/CollectionTime;" +
+        "threads=java.lang:type=Threading/ThreadCount;" +
+        "classes.loaded=java.lang:type=ClassLoading/LoadedClassCount;" +
+        "cpu.process=java.lang:type=OperatingSystem/ProcessCpuLoad;" +
+        "cpu.system=java.lang:type=OperatingSystem/SystemCpuLoad";
+
+    private BundleContext context;
+    private MBeanServer mbean_server;
+    private ScheduledExecutorService executor;
+    private int interval;
+
+    private final Map<String, MetricRing> rings = new LinkedHashMap<> ();
+    private final Map<ObjectName, List<Metric>> metrics_by_mbean = new LinkedHashMap<> ();
+
+    public MetricSampler (BundleContext context, MBeanServer mbean_server)
+    {
+        this.context = context;
+        this.mbean_server = mbean_server;
+    }
+
+    private int get_int_property (String property, int default_value)
+    {
+        String value = context.getProperty (property);
+
+        try
+        {
+            return ((value == null)? default_value: Integer.parseInt (value.trim ()));
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn ("Invalid {}: {}", property, value);
+            return (default_value);
+        }
+    }
+
+    private String get_file_name (String metric_name)
+    {
+        return (metric_name.replaceAll ("[^A-Za-z0-9._-]", "_") + ".ring");
+    }
+
+    private void add_metric (String name, ObjectName object_name, String path, File history_dir, int slots)
+    {
+        int dot = path.indexOf ('.');
+        String attribute = (dot == -1)? path: path.substring (0, dot);
+        String item_path = (dot == -1)? null: path.substring (dot + 1);
+        String source = object_name.getCanonicalName () + "/" + path;
+        MetricRing ring;
+
+        try
+        {
+            File ring_file = (history_dir == null)? null: new File (history_dir, get_file_name (name));
+            ring = MetricRing.open (name, source, ring_file, slots);
+        }
+        catch (IOException e)
+        {
+            log.warn ("Unable to open history for metric {}: {}", name, e.toString ());
+            return;
+        }
+
+        rings.put (name, ring);
+        metrics_by_mbean.computeIfAbsent (object_name, k -> new ArrayList<> ())
+            .add (new Metric (attribute, item_path, ring));
+    }
+
+    private void configure_metric (String spec, File history_dir, int slots)
+    {
+        int equals = spec.indexOf ('=');
+        int slash = spec.lastIndexOf ('/');
+
+        if (equals <= 0 || slash < equals)
+        {
+            log.warn ("Invalid metric: {}", spec);
+            return;
+        }
+
+        String name = spec.substring (0, equals).trim ();
+        String path = spec.substring (slash + 1).trim ();
+        ObjectName object_name;
+
+        try
+        {
+            object_name = new ObjectName (spec.substring (equals + 1, slash).trim ());
+        }
+        catch (MalformedObjectNameException e)
+        {
+            log.warn ("Invalid metric mbean: {}", spec);
+            return;
+        }
+
+        if (!object_name.isPattern ())
+        {
+            add_metric (name, object_name, path, history_dir, slots);
+            return;
+        }
+
+        // One metric for each mbean, sorted for stable names
+        for (ObjectName match: new TreeSet<> (mbean_server.queryNames (object_name, null)))
+        {
+            String key = match.getKeyProperty ("name");
+            String suffix = (key != null)? key: match.getCanonicalKeyPropertyListString ();
+            add_metric (name + "." + suffix.replace (' ', '_'), match, path, history_dir, slots);
+        }
+    }
+
+    public boolean start ()
+    {
+        interval = get_int_property (INTERVAL_PROPERTY, DEFAULT_INTERVAL);
+
+        if (interval <= 0)
+        {
+            log.info ("Metric sampler disabled");
+            return (false);
+        }
+
+        int slots = Math.max (2, get_int_property (SLOTS_PROPERTY, DEFAULT_SLOTS));
+        String metrics = context.getProperty (METRICS_PROPERTY);
+        File history_dir = context.getDataFile (HISTORY_DIR);
+
+        if (history_dir != null && !history_dir.isDirectory () && !history_dir.mkdirs ())
+        {
+            log.warn ("Unable to create {}, history kept in memory", history_dir);
+            history_dir = null;
+        }
+
+        for (String spec: ((metrics == null)? DEFAULT_METRICS: metrics).split (";"))
+        {
+            if (!spec.trim ().isEmpty ())
+            {
+                configure_metric (spec.trim (), history_dir, slots);
+            }
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor (r ->
+        {
+            Thread t = new Thread (r, "jmxspyd-sampler");
+            t.setDaemon (true);
+            return (t);
+        });
+        executor.scheduleAtFixedRate (this, 0, interval, TimeUnit.MILLISECONDS);
+        log.info ("Metric sampler started: {} metrics every {}ms, {} samples kept", rings.size (), interval, slots);
+        return (true);
+    }
+
+    public void stop ()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow ();
+
+            try
+            {
+                executor.awaitTermination (interval, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ignore) {};
+            executor = null;
+        }
+
+        for (MetricRing ring: rings.values ())
+        {
+            ring.flush ();
+        }
+    }
+
+    public int getInterval ()
+    {
+        return (interval);
+    }
+
+    public List<MetricRing> getRings ()
+    {
+        return (Collections.unmodifiableList (new ArrayList<> (rings.values ())));
+    }
+
+    private double get_number (Object value, String item_path)
+    {
+        if (item_path != null)
+        {
+            for (String key: item_path.split ("\\."))
+            {
+                value = (value instanceof CompositeData)? ((CompositeData)value).get (key): null;
+            }
+        }
+
+        if (value instanceof Number)
+        {
+            return (((Number)value).doubleValue ());
+        }
+        else if (value instanceof Boolean)
+        {
+            return (((Boolean)value)? 1: 0);
+        }
+        return (Double.NaN);
+    }
+
+    @Override // Runnable
+    public void run ()
+    {
+        long now = System.currentTimeMillis ();
+
+        for (Map.Entry<ObjectName, List<Metric>> entry: metrics_by_mbean.entrySet ())
+        {
+            List<Metric> metrics = entry.getValue ();
+            String[] attributes = new String [metrics.size ()];
+            Map<String, Object> values = new HashMap<> ();
+
+            for (int i = 0; i < attributes.length; i++)
+            {
+                attributes [i] = metrics.get (i).attribute;
+            }
+
+            try
+            {
+                for (Attribute attribute: mbean_server.getAttributes (entry.getKey (), attributes).asList ())
+                {
+                    values.put (attribute.getName (), attribute.getValue ());
+                }
+            }
+            catch (Exception e)
+            {
+                // The mbean may come back later
+                log.debug ("Unable to sample {}: {}", entry.getKey (), e.toString ());
+                continue;
+            }
+
+            for (Metric metric: metrics)
+            {
+                if (values.containsKey (metric.attribute))
+                {
+                    metric.ring.add (now, get_number (values.get (metric.attribute), metric.item_path));
+                }
+            }
+        }
+    }
+
+    private static class Metric
+    {
+        final String attribute;
+        final String item_path;
+        final MetricRing ring;
+
+        Metric (String attribute, String item_path, MetricRing ring)
+        {
+            this.attribute = attribute;
+            this.item_path = item_path;
+            this.ring = ring;
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+import org.lucidj.kernel.shared.TinyLog;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Continuous auto-deploy: watches felix.auto.deploy.dir after the boot
+// processing done by AutoProcessor, and applies only the files that changed
+// using the same install/update/uninstall/start actions. Bursts of file
+// events (like a jar being copied) are merged until the directory stays
+// quiet for a while, and all the bundles updated or uninstalled on a burst
+// are refreshed together with a single refreshBundles() call. The watcher
+// outlives framework updates, moving to the new system context once the
+// framework is active again.
+public class AutoDeployWatcher implements FrameworkListener
+{
+    private static TinyLog log = new TinyLog (AutoDeployWatcher.class);
+
+    // Enables the continuous auto-deploy mode
+    public static final String WATCH_PROPERTY       = "lucidj.auto.deploy.watch";
+    // Milliseconds without file events before a burst is applied
+    public static final String WATCH_QUIET_PROPERTY = "lucidj.auto.deploy.watch.quiet";
+    public static final long   WATCH_QUIET_VALUE    = 1000;
+
+    // A burst never waits more than this many quiet periods
+    private static final int MAX_QUIET_PERIODS = 10;
+
+    // How long we wait for the framework to refresh the bundles
+    private static final long REFRESH_TIMEOUT_MS = 60000;
+
+    private final Bundle framework;
+    private volatile BundleContext context;
+    private volatile boolean detached;
+    private final File deploy_dir;
+    private final List<String> action_list;
+    private final int start_level;
+    private final DeployIndex deploy_index;
+    private final long quiet_ms;
+    private final WatchService watcher;
+    private final Thread watcher_thread;
+
+    private AutoDeployWatcher (BundleContext context, File deploy_dir, List<String> action_list,
+                               int start_level, DeployIndex deploy_index, long quiet_ms)
+        throws IOException
+    {
+        this.framework = context.getBundle ();
+        this.context = context;
+        this.deploy_dir = deploy_dir.getAbsoluteFile ();
+        this.action_list = action_list;
+        this.start_level = start_level;
+        this.deploy_index = deploy_index;
+        this.quiet_ms = quiet_ms;
+
+        watcher = FileSystems.getDefault ().newWatchService ();
+        this.deploy_dir.toPath ().register (watcher,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+
+        watcher_thread = new Thread (this::watch_loop, "Auto-deploy watcher");
+        watcher_thread.setDaemon (true);
+    }
+
+    public static AutoDeployWatcher start (BundleContext context, File deploy_dir, List<String> action_list,
+                                           int start_level, DeployIndex deploy_index, String quiet_prop)
+    {
+        long quiet_ms = WATCH_QUIET_VALUE;
+
+        if (quiet_prop != null)
+        {
+            try
+            {
+                quiet_ms = Math.max (10, Long.parseLong (quiet_prop.trim ()));
+            }
+            catch (NumberFormatException e)
+            {
+                log.warn ("Invalid {}: {}", WATCH_QUIET_PROPERTY, quiet_prop);
+            }
+        }
+
+        try
+        {
+            AutoDeployWatcher deploy_watcher =
+                new AutoDeployWatcher (context, deploy_dir, action_list, start_level, deploy_index, quiet_ms);
+            context.addFrameworkListener (deploy_watcher);
+            deploy_watcher.watcher_thread.start ();
+            log.info ("Watching {} for {}", deploy_watcher.deploy_dir, action_list);
+            return (deploy_watcher);
+        }
+        catch (IOException e)
+        {
+            log.error ("Exception watching auto-deploy dir {}", deploy_dir, e);
+            return (null);
+        }
+    }
+
+    public void stop ()
+    {
+        try
+        {
+            watcher.close ();
+        }
+        catch (IOException ignore) {};
+        watcher_thread.interrupt ();
+    }
+
+    @Override // FrameworkListener
+    public void frameworkEvent (FrameworkEvent frameworkEvent)
+    {
+        switch (frameworkEvent.getType ())
+        {
+            case FrameworkEvent.STOPPED_UPDATE:
+            {
+                // The framework restarts with a new system context, pick it on the next changes
+                detached = true;
+                break;
+            }
+            case FrameworkEvent.STOPPED:
+            case FrameworkEvent.STOPPED_BOOTCLASSPATH_MODIFIED:
+            {
+                // The system context is gone with the framework
+                stop ();
+                break;
+            }
+        }
+    }
+
+    // Collects the events of a key, returns true if events were lost
+    private boolean collect_events (WatchKey key, TreeSet<String> changed_files)
+    {
+        boolean overflow = false;
+
+        for (WatchEvent<?> event: key.pollEvents ())
+        {
+            if (event.kind () == StandardWatchEventKinds.OVERFLOW)
+            {
+                overflow = true;
+                continue;
+            }
+
+            String filename = ((Path)event.context ()).toString ();
+
+            if (filename.endsWith (".jar"))
+            {
+                changed_files.add (filename);
+            }
+        }
+        key.reset ();
+        return (overflow);
+    }
+
+    // Makes sure we are on the current system context, true if the framework is there
+    private boolean attach ()
+    {
+        if (!detached)
+        {
+            return (true);
+        }
+
+        if (framework.getState () != Bundle.ACTIVE)
+        {
+            return (false);
+        }
+
+        try
+        {
+            BundleContext new_context = framework.getBundleContext ();
+            new_context.addFrameworkListener (this);
+            context = new_context;
+            detached = false;
+            log.info ("Auto-deploy watcher attached to the restarted framework");
+            return (true);
+        }
+        catch (NullPointerException | IllegalStateException e)
+        {
+            // Stopping again, try later
+            return (false);
+        }
+    }
+
+    private void watch_loop ()
+    {
+        // Set when changes could not be applied, so everything is looked at later
+        boolean pending = false;
+
+        try
+        {
+            while (!Thread.currentThread ().isInterrupted ())
+            {
+                TreeSet<String> changed_files = new TreeSet<> ();
+                boolean rescan = pending;
+                WatchKey key = pending? watcher.poll (quiet_ms, TimeUnit.MILLISECONDS): watcher.take ();
+                long deadline = System.currentTimeMillis () + quiet_ms * MAX_QUIET_PERIODS;
+
+                // Debounce: keep merging until the directory stays quiet
+                while (key != null)
+                {
+                    rescan |= collect_events (key, changed_files);
+                    key = (System.currentTimeMillis () < deadline)? watcher.poll (quiet_ms, TimeUnit.MILLISECONDS): null;
+                }
+
+                if (!rescan && changed_files.isEmpty ())
+                {
+                    continue;
+                }
+
+                if (!attach ())
+                {
+                    // The framework is restarting after an update
+                    pending = true;
+                    continue;
+                }
+
+                try
+                {
+                    if (rescan)
+                    {
+                        // Events were lost, so look at everything
+                        changed_files.addAll (list_deployed_files ());
+                    }
+
+                    if (!changed_files.isEmpty ())
+                    {
+                        apply_delta (changed_files);
+                    }
+                    pending = false;
+                }
+                catch (IllegalStateException e)
+                {
+                    // The context became invalid, redo it all on the next one
+                    log.info ("Auto-deploy interrupted by framework stop: {}", e.toString ());
+                    detached = true;
+                    pending = true;
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ignore)
+        {
+            // We're done
+        }
+    }
+
+    // Jars on the deploy dir plus the installed bundles that came from it
+    private List<String> list_deployed_files ()
+    {
+        List<String> file_list = new ArrayList<> ();
+        File[] files = deploy_dir.listFiles ();
+
+        for (int i = 0; files != null && i < files.length; i++)
+        {
+            if (files [i].getName ().endsWith (".jar"))
+            {
+                file_list.add (files [i].getName ());
+            }
+        }
+
+        String dir_uri = deploy_dir.toURI ().toString ();
+
+        for (Bundle bnd: context.getBundles ())
+        {
+            String location = bnd.getLocation ();
+
+            if (location.startsWith (dir_uri) && location.indexOf ('/', dir_uri.length ()) == -1)
+            {
+                file_list.add (location.substring (dir_uri.length ()));
+            }
+        }
+        return (file_list);
+    }
+
+    private boolean is_fragment (Bundle bnd)
+    {
+        return (bnd.getHeaders ().get (Constants.FRAGMENT_HOST) != null);
+    }
+
+    private void apply_delta (TreeSet<String> changed_files)
+    {
+        List<Bundle> start_list = new ArrayList<> ();
+        List<Bundle> refresh_list = new ArrayList<> ();
+
+        for (String filename: changed_files)
+        {
+            File file = new File (deploy_dir, filename);
+            String location = file.toURI ().toString ();
+            Bundle bnd = context.getBundle (location);
+
+            try
+            {
+                if (file.isFile ())
+                {
+                    if (bnd == null && action_list.contains (AutoProcessor.AUTO_DEPLOY_INSTALL_VALUE))
+                    {
+                        log.info ("Auto-deploy install: {}", location);
+                        bnd = context.installBundle (location);
+                        bnd.adapt (BundleStartLevel.class).setStartLevel (start_level);
+                        deploy_index.hasChanged (file, location);
+                    }
+                    else if (bnd != null && action_list.contains (AutoProcessor.AUTO_DEPLOY_UPDATE_VALUE)
+                             && deploy_index.hasChanged (file, location))
+                    {
+                        log.info ("Auto-deploy update: {}", bnd);
+                        bnd.update ();
+                        refresh_list.add (bnd);
+                    }
+
+                    if (bnd != null && !is_fragment (bnd))
+                    {
+                        start_list.add (bnd);
+                    }
+                }
+                else if (bnd != null && action_list.contains (AutoProcessor.AUTO_DEPLOY_UNINSTALL_VALUE))
+                {
+                    log.info ("Auto-deploy uninstall: {}", bnd);
+                    bnd.uninstall ();
+                    deploy_index.forget (location);
+                    refresh_list.add (bnd);
+                }
+            }
+            catch (BundleException e)
+            {
+                // Maybe still being copied, the next event retries
+                deploy_index.forget (location);
+                log.warn ("Auto-deploy exception on {}: {}", location, e.toString ());
+            }
+        }
+
+        deploy_index.save ();
+
+        if (!refresh_list.isEmpty ())
+        {
+            refresh_bundles (refresh_list);
+        }
+
+        if (action_list.contains (AutoProcessor.AUTO_DEPLOY_START_VALUE))
+        {
+            for (Bundle bnd: start_list)
+            {
+                try
+                {
+                    if (bnd.getState () != Bundle.UNINSTALLED)
+                    {
+                        bnd.start ();
+                    }
+                }
+                catch (BundleException e)
+                {
+                    log.warn ("Auto-deploy start exception on {}: {}", bnd, e.toString ());
+                }
+            }
+        }
+    }
+
+    private void refresh_bundles (List<Bundle> refresh_list)
+    {
+        FrameworkWiring fw_wiring = context.getBundle (0).adapt (FrameworkWiring.class);
+        CountDownLatch refreshed = new CountDownLatch (1);
+
+        // A single refresh for the whole burst
+        log.info ("Auto-deploy refresh of {} bundles", refresh_list.size ());
+        fw_wiring.refreshBundles (refresh_list, event -> refreshed.countDown ());
+
+        try
+        {
+            if (!refreshed.await (REFRESH_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            {
+                log.warn ("Auto-deploy refresh still running after {}ms", REFRESH_TIMEOUT_MS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+        }
+    }
+}
+
+// EOF
@@ -105,7 +105,7 @@ public class AutoProcessor
         // Determine if auto deploy actions to perform.
         String action = (String) configMap.get(AUTO_DEPLOY_ACTION_PROPERTY);
         action = (action == null) ? "" : action;
-        List actionList = new ArrayList();
+        List<String> actionList = new ArrayList<String>();
         StringTokenizer st = new StringTokenizer(action, ",");
         while (st.hasMoreTokens())
         {
@@ -169,6 +169,9 @@ public class AutoProcessor
                 }
             }
 
+            // Digests of the deployed jars, to skip redundant updates.
+            DeployIndex deployIndex = DeployIndex.open(configMap, context);
+
             // Install bundle JAR files and remember the bundle objects.
             final List startBundleList = new ArrayList();
             for (int i = 0; i < jarList.size(); i++)
@@ -176,8 +179,9 @@ public class AutoProcessor
                 // Look up the bundle by location, removing it from
                 // the map of installed bundles so the remaining bundles
                 // indicate which bundles may need to be uninstalled.
-                Bundle b = (Bundle) installedBundleMap.remove(
-                    ((File) jarList.get(i)).toURI().toString());
+                File jarFile = (File) jarList.get(i);
+                String location = jarFile.toURI().toString();
+                Bundle b = (Bundle) installedBundleMap.remove(location);
 
                 try
                 {
@@ -185,12 +189,13 @@ public class AutoProcessor
                     // if the 'install' action is present.
                     if ((b == null) && actionList.contains(AUTO_DEPLOY_INSTALL_VALUE))
                     {
-                        b = context.installBundle(
-                            ((File) jarList.get(i)).toURI().toString());
+                        b = context.installBundle(location);
+                        deployIndex.hasChanged(jarFile, location);
                     }
                     // If the bundle is already installed, then update it
-                    // if the 'update' action is present.
-                    else if ((b != null) && actionList.contains(AUTO_DEPLOY_UPDATE_VALUE))
+                    // if the 'update' action is present and the jar changed.
+                    else if ((b != null) && actionList.contains(AUTO_DEPLOY_UPDATE_VALUE)
+                        && deployIndex.hasChanged(jarFile, location))
                     {
                         b.update();
                     }
@@ -206,6 +211,7 @@ public class AutoProcessor
                 }
                 catch (BundleException ex)
                 {
+                    deployIndex.forget(location);
                     System.err.println("Auto-deploy install: "
                         + ex + ((ex.getCause() != null) ? " - " + ex.getCause() : ""));
                 }
@@ -224,6 +230,7 @@ public class AutoProcessor
                         try
                         {
                             b.uninstall();
+                            deployIndex.forget(b.getLocation());
                         }
                         catch (BundleException ex)
                         {
@@ -251,6 +258,18 @@ public class AutoProcessor
                     }
                 }
             }
+
+            deployIndex.save();
+
+            // Keep applying the changes on the auto-deploy directory
+            // if the continuous mode is enabled.
+            Object watch = configMap.get(AutoDeployWatcher.WATCH_PROPERTY);
+            if (watch != null && Boolean.parseBoolean(watch.toString().trim()))
+            {
+                Object quiet = configMap.get(AutoDeployWatcher.WATCH_QUIET_PROPERTY);
+                AutoDeployWatcher.start(context, new File(autoDir), actionList, startLevel, deployIndex,
+                    (quiet == null) ? null : quiet.toString());
+            }
         }
     }
 
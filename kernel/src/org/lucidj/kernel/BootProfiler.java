@@ -0,0 +1,312 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Boot timeline profiler fed by the Tracer events.
+//
+// Every bundle gets the time of its INSTALLED, RESOLVED, STARTING and STARTED
+// events, and every bundle belongs to a group named after the directory it was
+// installed from (usually the boot.d start-level directory). Once the framework
+// reaches the final start level, a report is built with:
+//
+//  - the boot phases marked by the launcher (embedded bundles, auto-deploy...)
+//  - the critical path, i.e. how long it took to reach every start level and
+//    which activators held each step
+//  - the time spent on each group
+//  - the slowest activators
+//
+public class BootProfiler
+{
+    private final static int SLOWEST_ACTIVATORS = 20;
+    private final static int STEP_ACTIVATORS    = 3;
+
+    private final long t0 = System.nanoTime ();
+    private final long jvm_uptime = ManagementFactory.getRuntimeMXBean ().getUptime ();
+    private final int final_startlevel;
+
+    private final Map<Long, BundleTiming> bundles = new LinkedHashMap<> ();
+    private final List<Mark> phases = new ArrayList<> ();
+    private final List<Mark> level_steps = new ArrayList<> ();
+    private boolean finished = false;
+
+    public BootProfiler (int final_startlevel)
+    {
+        this.final_startlevel = final_startlevel;
+    }
+
+    public synchronized boolean isFinished ()
+    {
+        return (finished);
+    }
+
+    public synchronized void phase (String name)
+    {
+        if (!finished)
+        {
+            phases.add (new Mark (name, System.nanoTime ()));
+        }
+    }
+
+    public synchronized void bundleEvent (Bundle bnd, int type, int bundle_start_level)
+    {
+        if (finished)
+        {
+            return;
+        }
+
+        long now = System.nanoTime ();
+        BundleTiming timing = bundles.get (bnd.getBundleId ());
+
+        if (timing == null)
+        {
+            timing = new BundleTiming (bnd.getBundleId (), bnd.getSymbolicName (), get_group (bnd.getLocation ()));
+            bundles.put (bnd.getBundleId (), timing);
+        }
+        timing.start_level = bundle_start_level;
+
+        switch (type)
+        {
+            case BundleEvent.INSTALLED: timing.installed = now; break;
+            case BundleEvent.RESOLVED:  timing.resolved = now;  break;
+            case BundleEvent.STARTING:  timing.starting = now;  break;
+            case BundleEvent.STARTED:   timing.started = now;   break;
+        }
+    }
+
+    // Returns the report once the final start level is reached, otherwise null
+    public synchronized String startLevelChanged (int start_level)
+    {
+        if (finished)
+        {
+            return (null);
+        }
+
+        level_steps.add (new Mark (Integer.toString (start_level), System.nanoTime ()));
+
+        if (start_level < final_startlevel)
+        {
+            return (null);
+        }
+
+        finished = true;
+        String report = build_report ();
+
+        // We are done, release everything
+        bundles.clear ();
+        phases.clear ();
+        level_steps.clear ();
+        return (report);
+    }
+
+    private static String get_group (String location)
+    {
+        if (location == null)
+        {
+            return ("-");
+        }
+        else if (location.startsWith ("jar:"))
+        {
+            return ("embedded");
+        }
+
+        // The group is the directory containing the bundle, like 10-deploy-jetty
+        int slash = location.lastIndexOf ('/');
+        String parent = (slash <= 0)? location: location.substring (0, slash);
+        return (parent.substring (parent.lastIndexOf ('/') + 1));
+    }
+
+    private String ms (long nanos)
+    {
+        return (String.format ("%.1fms", nanos / 1e6));
+    }
+
+    private String at (long nanos)
+    {
+        return ("+" + ms (nanos - t0));
+    }
+
+    private List<BundleTiming> activators_between (long from, long to)
+    {
+        List<BundleTiming> result = new ArrayList<> ();
+
+        for (BundleTiming timing: bundles.values ())
+        {
+            if (timing.started != 0 && timing.started > from && timing.started <= to)
+            {
+                result.add (timing);
+            }
+        }
+        Collections.sort (result, (a, b) -> Long.compare (b.activation (), a.activation ()));
+        return (result);
+    }
+
+    private String build_report ()
+    {
+        StringBuilder sb = new StringBuilder ();
+        long end = level_steps.get (level_steps.size () - 1).time;
+
+        sb.append ("===Boot profile=== start level ").append (final_startlevel)
+          .append (" reached in ").append (ms (end - t0))
+          .append (" (JVM uptime at kernel init ").append (jvm_uptime).append ("ms)");
+
+        //--------
+        // Phases
+        //--------
+
+        long previous = t0;
+
+        for (Mark phase: phases)
+        {
+            sb.append ("\n\tPhase ").append (phase.name).append (": ").append (at (phase.time))
+              .append (" (").append (ms (phase.time - previous)).append (")");
+            previous = phase.time;
+        }
+
+        //-----------------------------------------------------------------
+        // Critical path: start levels are reached one after the other,
+        // and inside every step the activators run one after the other
+        //-----------------------------------------------------------------
+
+        previous = t0;
+
+        for (Mark step: level_steps)
+        {
+            List<BundleTiming> step_activators = activators_between (previous, step.time);
+
+            sb.append ("\n\tLevel ").append (step.name).append (": ").append (at (step.time))
+              .append (" (").append (ms (step.time - previous)).append (", ")
+              .append (step_activators.size ()).append (" started)");
+
+            for (int i = 0; i < step_activators.size () && i < STEP_ACTIVATORS; i++)
+            {
+                BundleTiming timing = step_activators.get (i);
+                sb.append ("\n\t\t").append (timing.name ()).append (" ").append (ms (timing.activation ()));
+            }
+            previous = step.time;
+        }
+
+        //--------
+        // Groups
+        //--------
+
+        Map<String, long[]> groups = new LinkedHashMap<> ();
+
+        for (BundleTiming timing: bundles.values ())
+        {
+            // count, first event, last started, total activation, total resolve
+            long[] group = groups.computeIfAbsent (timing.group, k -> new long[] { 0, Long.MAX_VALUE, 0, 0, 0 });
+            long first = timing.first_event ();
+
+            group [0]++;
+            group [1] = (first == 0)? group [1]: Math.min (group [1], first);
+            group [2] = Math.max (group [2], timing.started);
+            group [3] += timing.activation ();
+            group [4] += timing.resolution ();
+        }
+
+        for (Map.Entry<String, long[]> entry: groups.entrySet ())
+        {
+            long[] group = entry.getValue ();
+            long wall = (group [1] == Long.MAX_VALUE || group [2] < group [1])? 0: group [2] - group [1];
+
+            sb.append ("\n\tGroup ").append (entry.getKey ()).append (": bundles=").append (group [0])
+              .append (" wall=").append (ms (wall))
+              .append (" resolve=").append (ms (group [4]))
+              .append (" activation=").append (ms (group [3]));
+        }
+
+        //--------------------
+        // Slowest activators
+        //--------------------
+
+        List<BundleTiming> slowest = activators_between (t0, end);
+
+        for (int i = 0; i < slowest.size () && i < SLOWEST_ACTIVATORS; i++)
+        {
+            BundleTiming timing = slowest.get (i);
+
+            sb.append ("\n\tSlowest #").append (i + 1).append (" ").append (timing.name ())
+              .append (" ").append (ms (timing.activation ()))
+              .append (" level=").append (timing.start_level)
+              .append (" group=").append (timing.group)
+              .append (" installed=").append ((timing.installed == 0)? "-": at (timing.installed))
+              .append (" resolved=").append ((timing.resolved == 0)? "-": at (timing.resolved))
+              .append (" started=").append (at (timing.started));
+        }
+        return (sb.toString ());
+    }
+
+    private static class Mark
+    {
+        final String name;
+        final long time;
+
+        Mark (String name, long time)
+        {
+            this.name = name;
+            this.time = time;
+        }
+    }
+
+    private static class BundleTiming
+    {
+        final long id;
+        final String symbolic_name;
+        final String group;
+        int start_level;
+        long installed, resolved, starting, started;
+
+        BundleTiming (long id, String symbolic_name, String group)
+        {
+            this.id = id;
+            this.symbolic_name = symbolic_name;
+            this.group = group;
+        }
+
+        String name ()
+        {
+            return ("[" + id + "] " + symbolic_name);
+        }
+
+        long first_event ()
+        {
+            return ((installed != 0)? installed: (resolved != 0)? resolved: starting);
+        }
+
+        long activation ()
+        {
+            return ((starting != 0 && started >= starting)? started - starting: 0);
+        }
+
+        long resolution ()
+        {
+            return ((installed != 0 && resolved >= installed)? resolved - installed: 0);
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+import org.osgi.framework.launch.Framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// Pre-linked kernel image: a felix cache holding all the embedded bundles
+// already installed, packed inside the kernel jar as /felix-cache.snapshot.
+//
+// The snapshot is made at build time by booting the kernel headless with
+// -Dlucidj.cache.snapshot.build=<file>: the embedded bundles are installed
+// and resolved as on a regular first boot, then the framework is stopped
+// before any bundle starts and the cache is zipped into <file>. On a first
+// boot with an empty cache, the snapshot is unpacked as the felix cache, so
+// the framework comes up with the bundles in place and the embedded bundles
+// processing is bypassed. Use -Dlucidj.cache.snapshot=false to disable.
+//
+// The embedded bundle locations contain the kernel jar path, so the ones
+// recorded on the build are rewritten to the running kernel jar path.
+public class CacheSnapshot
+{
+    public static final String SNAPSHOT_PROPERTY       = "lucidj.cache.snapshot";
+    public static final String SNAPSHOT_BUILD_PROPERTY = "lucidj.cache.snapshot.build";
+    public static final String SNAPSHOT_RESOURCE       = "/felix-cache.snapshot";
+
+    private final static String INFO_ENTRY      = "snapshot.properties";
+    private final static String CACHE_PREFIX    = "felix-cache/";
+    private final static String BUNDLE_INFO     = "bundle.info";
+    private final static String PREFIX_PROPERTY = "embedded.prefix";
+    private final static String COUNT_PROPERTY  = "bundle.count";
+
+    // Location prefix of the bundles embedded on the kernel jar, as EmbedProcessor builds them
+    private static String get_embedded_prefix (URL kernel_resource)
+    {
+        if (kernel_resource == null)
+        {
+            return (null);
+        }
+
+        try
+        {
+            URL jar_file_url = ((JarURLConnection)kernel_resource.openConnection ()).getJarFileURL ();
+            Path kernel_jar = new File (jar_file_url.toURI ()).toPath ();
+            return ("jar:" + URLDecoder.decode (kernel_jar.toUri ().toString (), "UTF-8") + "!/");
+        }
+        catch (IOException | URISyntaxException | ClassCastException | IllegalArgumentException e)
+        {
+            return (null);
+        }
+    }
+
+    private static boolean is_fresh_cache (File cache_dir)
+    {
+        // Only the system bundle means nothing was ever installed
+        File[] files = cache_dir.listFiles ();
+
+        for (int i = 0; files != null && i < files.length; i++)
+        {
+            if (files [i].isDirectory ()
+                && files [i].getName ().startsWith ("bundle")
+                && !files [i].getName ().equals ("bundle0"))
+            {
+                return (false);
+            }
+        }
+        return (true);
+    }
+
+    private static byte[] read_all (InputStream is)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        byte[] buffer = new byte [8192];
+        int count;
+
+        while ((count = is.read (buffer)) != -1)
+        {
+            bytes.write (buffer, 0, count);
+        }
+        return (bytes.toByteArray ());
+    }
+
+    // bundle.info holds the bundle id on the first line and its location on the second
+    private static byte[] rewrite_location (byte[] bundle_info, String old_prefix, String new_prefix)
+    {
+        String[] lines = new String (bundle_info, StandardCharsets.UTF_8).split ("\n", -1);
+
+        if (lines.length > 1 && lines [1].startsWith (old_prefix))
+        {
+            lines [1] = new_prefix + lines [1].substring (old_prefix.length ());
+        }
+        return (String.join ("\n", lines).getBytes (StandardCharsets.UTF_8));
+    }
+
+    private static void delete_tree (Path root)
+    {
+        try (Stream<Path> walk = Files.walk (root))
+        {
+            walk.sorted (Comparator.reverseOrder ()).forEach (path -> path.toFile ().delete ());
+        }
+        catch (IOException ignore) {};
+    }
+
+    /**
+     * Unpacks the embedded cache snapshot into the given cache dir, if the
+     * cache is still empty and the kernel carries a snapshot.
+     *
+     * @param cache_dir The felix cache directory.
+     * @return true if the cache was seeded.
+     **/
+    public static boolean seed (File cache_dir)
+    {
+        URL snapshot_url = Main.class.getResource (SNAPSHOT_RESOURCE);
+
+        if (snapshot_url == null
+            || "false".equalsIgnoreCase (System.getProperty (SNAPSHOT_PROPERTY))
+            || !is_fresh_cache (cache_dir))
+        {
+            return (false);
+        }
+
+        String new_prefix = get_embedded_prefix (snapshot_url);
+        File seed_dir = new File (cache_dir.getAbsolutePath () + ".seed");
+        String old_prefix = null;
+        int bundle_count = 0;
+
+        delete_tree (seed_dir.toPath ());
+
+        try (ZipInputStream zis = new ZipInputStream (snapshot_url.openStream ()))
+        {
+            ZipEntry entry;
+
+            while ((entry = zis.getNextEntry ()) != null)
+            {
+                String name = entry.getName ();
+
+                if (name.equals (INFO_ENTRY))
+                {
+                    Properties info = new Properties ();
+                    info.load (zis);
+                    old_prefix = info.getProperty (PREFIX_PROPERTY);
+                    bundle_count = Integer.parseInt (info.getProperty (COUNT_PROPERTY, "0"));
+                    continue;
+                }
+
+                if (entry.isDirectory () || !name.startsWith (CACHE_PREFIX) || name.contains (".."))
+                {
+                    continue;
+                }
+
+                Path target = seed_dir.toPath ().resolve (name.substring (CACHE_PREFIX.length ()));
+                Files.createDirectories (target.getParent ());
+
+                if (name.endsWith ("/" + BUNDLE_INFO) && old_prefix != null && new_prefix != null)
+                {
+                    Files.write (target, rewrite_location (read_all (zis), old_prefix, new_prefix));
+                }
+                else
+                {
+                    Files.copy (zis, target);
+                }
+            }
+
+            // Move the bundles in, the system bundle last since it holds the next bundle id
+            List<Path> seeded = new ArrayList<> ();
+
+            try (Stream<Path> list = Files.list (seed_dir.toPath ()))
+            {
+                list.sorted (Comparator.comparing (path -> path.getFileName ().toString ().equals ("bundle0")))
+                    .forEach (seeded::add);
+            }
+
+            Files.createDirectories (cache_dir.toPath ());
+
+            for (Path path: seeded)
+            {
+                Path target = cache_dir.toPath ().resolve (path.getFileName ());
+                delete_tree (target);
+                Files.move (path, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            System.out.println ("Felix cache seeded with " + bundle_count + " pre-installed bundles");
+            return (true);
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.err.println ("Warning: Could not seed " + cache_dir + " from snapshot: " + e);
+            return (false);
+        }
+        finally
+        {
+            delete_tree (seed_dir.toPath ());
+        }
+    }
+
+    /**
+     * Stops the framework and packs its cache as a snapshot. Intended for
+     * the headless boot done by the kernel build.
+     *
+     * @param framework The framework, with the embedded bundles installed.
+     * @param cache_dir The felix cache directory.
+     * @param snapshot_file The snapshot to write.
+     **/
+    public static void build (Framework framework, File cache_dir, File snapshot_file)
+        throws Exception
+    {
+        // Nothing should be running when the cache is copied
+        framework.stop ();
+        framework.waitForStop (0);
+
+        final Path cache_path = cache_dir.toPath ();
+        Properties info = new Properties ();
+        String prefix = get_embedded_prefix (Main.class.getResource (EmbedProcessor.EMBEDDED_DEPLOY_DIR_VALUE));
+
+        if (prefix != null)
+        {
+            info.setProperty (PREFIX_PROPERTY, prefix);
+        }
+        info.setProperty (COUNT_PROPERTY, Integer.toString (count_bundles (cache_dir)));
+
+        // A partial walk still closes into a valid zip, only a complete one goes in place
+        Path snapshot_path = snapshot_file.toPath ();
+        Path temp_path = snapshot_path.resolveSibling (snapshot_path.getFileName () + ".tmp");
+
+        try
+        {
+            write_snapshot (cache_path, info, temp_path);
+            Files.move (temp_path, snapshot_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists (temp_path);
+        }
+        System.out.println ("Felix cache snapshot written to " + snapshot_file);
+    }
+
+    private static void write_snapshot (final Path cache_path, Properties info, Path snapshot_path)
+        throws IOException
+    {
+        try (OutputStream os = Files.newOutputStream (snapshot_path);
+             final ZipOutputStream zos = new ZipOutputStream (os))
+        {
+            zos.putNextEntry (new ZipEntry (INFO_ENTRY));
+            info.store (zos, "Felix cache snapshot");
+            zos.closeEntry ();
+
+            Files.walkFileTree (cache_path, new SimpleFileVisitor<Path> ()
+            {
+                @Override // SimpleFileVisitor
+                public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+                    throws IOException
+                {
+                    String name = cache_path.relativize (file).toString ().replace (File.separatorChar, '/');
+
+                    // The lock belongs to the running framework
+                    if (!name.equals ("cache.lock"))
+                    {
+                        zos.putNextEntry (new ZipEntry (CACHE_PREFIX + name));
+                        Files.copy (file, zos);
+                        zos.closeEntry ();
+                    }
+                    return (FileVisitResult.CONTINUE);
+                }
+            });
+        }
+    }
+
+    private static int count_bundles (File cache_dir)
+    {
+        File[] files = cache_dir.listFiles ();
+        int count = 0;
+
+        for (int i = 0; files != null && i < files.length; i++)
+        {
+            if (new File (files [i], BUNDLE_INFO).isFile ())
+            {
+                count++;
+            }
+        }
+        return (count);
+    }
+}
+
+// EOF
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Compiled snapshot of the launcher configuration: the system properties
+// loaded from system.properties and the framework properties loaded from
+// config.properties, both already substituted.
+//
+// The snapshot is keyed by the size, mtime and SHA-256 digest of each source
+// file, and by a SHA-256 digest of the system properties present before
+// loading them (-D options, layout directories...), since they take part on
+// the variable substitution. The mtime alone may have a 1 second resolution,
+// missing a same length edit done within the second the snapshot was taken.
+// The sources are checked as found when the snapshot is opened, before they
+// are loaded, so an edit made while loading only makes the next boot rebuild. When nothing changed, the whole configuration comes from a
+// single mapped read of ${system.data}/config.snapshot, with no properties
+// parsing nor substitution. Use -Dlucidj.config.snapshot=false to disable.
+//
+// File layout (big endian, strings are int length + UTF-8 bytes):
+//
+//    int     magic 'LJCS'
+//    int     format version
+//    byte[32] system properties digest
+//    int     source count, then for each: string url, long size, long mtime,
+//            byte[32] content digest
+//    int     system property count, then for each: string key, string value
+//    int     config property count, then for each: string key, string value
+//
+public class ConfigSnapshot
+{
+    public static final String SNAPSHOT_PROPERTY = "lucidj.config.snapshot";
+    public static final String SNAPSHOT_FILE     = "config.snapshot";
+
+    private final static int MAGIC   = 0x4C4A4353;  // LJCS
+    private final static int VERSION = 2;
+
+    private final File snapshot_file;
+    private final URL[] sources;
+    private final byte[] env_digest;
+    private final long[] source_sizes;
+    private final long[] source_mtimes;
+    private final byte[][] source_digests;
+
+    private Map<String, String> system_props;
+    private Map<String, String> config_props;
+
+    private ConfigSnapshot (File snapshot_file, URL[] sources, byte[] env_digest)
+    {
+        this.snapshot_file = snapshot_file;
+        this.sources = sources;
+        this.env_digest = env_digest;
+        this.source_sizes = new long [sources.length];
+        this.source_mtimes = new long [sources.length];
+        this.source_digests = new byte [sources.length][];
+
+        for (int i = 0; snapshot_file != null && i < sources.length; i++)
+        {
+            File file = get_file (sources [i]);
+            source_sizes [i] = file.length ();
+            source_mtimes [i] = file.lastModified ();
+            source_digests [i] = get_file_digest (file);
+        }
+    }
+
+    // Opens the snapshot for the given sources, which becomes valid only when up to date
+    public static ConfigSnapshot open (URL... sources)
+    {
+        String system_data = System.getProperty ("system.data");
+        File file = (system_data == null)? null: new File (system_data, SNAPSHOT_FILE);
+
+        if (file != null && "false".equalsIgnoreCase (System.getProperty (SNAPSHOT_PROPERTY)))
+        {
+            file = null;
+        }
+
+        for (URL source: sources)
+        {
+            if (source == null || !"file".equals (source.getProtocol ()))
+            {
+                // Only local files can be checked cheaply
+                file = null;
+            }
+        }
+
+        ConfigSnapshot snapshot = new ConfigSnapshot (file, sources, get_env_digest ());
+
+        if (file != null && file.exists ())
+        {
+            snapshot.read ();
+        }
+        return (snapshot);
+    }
+
+    private static byte[] get_env_digest ()
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance ("SHA-256");
+            Map<String, String> sorted_props = new TreeMap<> ();
+
+            for (String key: System.getProperties ().stringPropertyNames ())
+            {
+                sorted_props.put (key, System.getProperty (key));
+            }
+
+            for (Map.Entry<String, String> entry: sorted_props.entrySet ())
+            {
+                md.update (entry.getKey ().getBytes (StandardCharsets.UTF_8));
+                md.update ((byte)0);
+                md.update (entry.getValue ().getBytes (StandardCharsets.UTF_8));
+                md.update ((byte)0);
+            }
+            return (md.digest ());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return (new byte [32]);
+        }
+    }
+
+    private static byte[] get_file_digest (File file)
+    {
+        try
+        {
+            // The configuration files are a few KB, nothing next to parsing them
+            return (MessageDigest.getInstance ("SHA-256").digest (Files.readAllBytes (file.toPath ())));
+        }
+        catch (IOException | NoSuchAlgorithmException e)
+        {
+            // Missing or unreadable, as good as an empty file
+            return (new byte [32]);
+        }
+    }
+
+    private static File get_file (URL source)
+    {
+        try
+        {
+            return (new File (source.toURI ()));
+        }
+        catch (URISyntaxException | IllegalArgumentException e)
+        {
+            return (new File (source.getPath ()));
+        }
+    }
+
+    private static String get_string (ByteBuffer buffer)
+    {
+        int length = buffer.getInt ();
+
+        if (length < 0 || length > buffer.remaining ())
+        {
+            throw new BufferUnderflowException ();
+        }
+
+        byte[] bytes = new byte [length];
+        buffer.get (bytes);
+        return (new String (bytes, StandardCharsets.UTF_8));
+    }
+
+    private static void put_string (DataOutputStream out, String str)
+        throws IOException
+    {
+        byte[] bytes = str.getBytes (StandardCharsets.UTF_8);
+        out.writeInt (bytes.length);
+        out.write (bytes);
+    }
+
+    private static Map<String, String> get_map (ByteBuffer buffer)
+    {
+        int count = buffer.getInt ();
+        Map<String, String> map = new HashMap<> (count * 2);
+
+        for (int i = 0; i < count; i++)
+        {
+            String key = get_string (buffer);
+            map.put (key, get_string (buffer));
+        }
+        return (map);
+    }
+
+    private static void put_map (DataOutputStream out, Map<String, String> map)
+        throws IOException
+    {
+        out.writeInt (map.size ());
+
+        for (Map.Entry<String, String> entry: map.entrySet ())
+        {
+            put_string (out, entry.getKey ());
+            put_string (out, entry.getValue ());
+        }
+    }
+
+    private void read ()
+    {
+        try (FileChannel channel = FileChannel.open (snapshot_file.toPath (), StandardOpenOption.READ))
+        {
+            MappedByteBuffer buffer = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+            if (buffer.getInt () != MAGIC || buffer.getInt () != VERSION)
+            {
+                return;
+            }
+
+            byte[] digest = new byte [32];
+            buffer.get (digest);
+
+            if (!Arrays.equals (digest, env_digest) || buffer.getInt () != sources.length)
+            {
+                return;
+            }
+
+            for (int i = 0; i < sources.length; i++)
+            {
+                if (!get_string (buffer).equals (sources [i].toString ())
+                    || buffer.getLong () != source_sizes [i]
+                    || buffer.getLong () != source_mtimes [i])
+                {
+                    return;
+                }
+
+                buffer.get (digest);
+
+                if (!Arrays.equals (digest, source_digests [i]))
+                {
+                    return;
+                }
+            }
+
+            Map<String, String> snapshot_system_props = get_map (buffer);
+            config_props = get_map (buffer);
+            system_props = snapshot_system_props;
+        }
+        catch (IOException | BufferUnderflowException | IllegalArgumentException e)
+        {
+            // Broken or truncated, it will be rebuilt
+            system_props = config_props = null;
+        }
+    }
+
+    public boolean isValid ()
+    {
+        return (system_props != null && config_props != null);
+    }
+
+    // Sets the system properties the same way loadSystemProperties() does
+    public void applySystemProperties ()
+    {
+        for (Map.Entry<String, String> entry: system_props.entrySet ())
+        {
+            System.setProperty (entry.getKey (), entry.getValue ());
+        }
+    }
+
+    public Map<String, String> getConfigProperties ()
+    {
+        return (new HashMap<> (config_props));
+    }
+
+    public void save (Map<String, String> system_props, Map<String, String> config_props)
+    {
+        if (snapshot_file == null || system_props == null || config_props == null
+            || !snapshot_file.getAbsoluteFile ().getParentFile ().isDirectory ())
+        {
+            return;
+        }
+
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+            DataOutputStream out = new DataOutputStream (bytes);
+
+            out.writeInt (MAGIC);
+            out.writeInt (VERSION);
+            out.write (env_digest);
+            out.writeInt (sources.length);
+
+            for (int i = 0; i < sources.length; i++)
+            {
+                put_string (out, sources [i].toString ());
+                out.writeLong (source_sizes [i]);
+                out.writeLong (source_mtimes [i]);
+                out.write (source_digests [i]);
+            }
+
+            put_map (out, system_props);
+            put_map (out, config_props);
+            out.flush ();
+
+            // Write aside and rename, so a reader never sees half a snapshot
+            File temp_file = new File (snapshot_file.getPath () + ".tmp");
+            Files.write (temp_file.toPath (), bytes.toByteArray ());
+            Files.move (temp_file.toPath (), snapshot_file.toPath (), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e)
+        {
+            System.err.println ("Warning: Could not save " + snapshot_file + ": " + e);
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+import org.lucidj.kernel.shared.TinyLog;
+import org.osgi.framework.BundleContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+
+// Digests of the jars deployed from the auto-deploy directory, so bundles
+// are only updated when their jar really changed. Every jar is recorded as
+// size, mtime and, optionally, its SHA-256. Size and mtime are the fast
+// path; with SHA-256 enabled, a jar that was only touched or copied over
+// with the same content is not updated either.
+//
+// The index lives on the system bundle data area, so it is discarded
+// together with the felix cache.
+public class DeployIndex
+{
+    private static TinyLog log = new TinyLog (DeployIndex.class);
+
+    // Digest used besides size and mtime: 'sha-256' or 'none'
+    public static final String DIGEST_PROPERTY = "lucidj.auto.deploy.digest";
+    public static final String DIGEST_SHA256   = "sha-256";
+    public static final String DIGEST_NONE     = "none";
+
+    private static final String INDEX_FILE = "auto-deploy.index";
+
+    private final File index_file;
+    private final boolean use_sha256;
+    private final Properties entries = new Properties ();
+    private boolean dirty = false;
+
+    private DeployIndex (File index_file, boolean use_sha256)
+    {
+        this.index_file = index_file;
+        this.use_sha256 = use_sha256;
+
+        if (index_file != null && index_file.exists ())
+        {
+            try (InputStream in = Files.newInputStream (index_file.toPath ()))
+            {
+                entries.load (in);
+            }
+            catch (IOException e)
+            {
+                // Everything looks changed, which is the old behaviour
+                log.warn ("Exception loading {}: {}", index_file, e.toString ());
+                entries.clear ();
+            }
+        }
+    }
+
+    public static DeployIndex open (Map<?, ?> configMap, BundleContext context)
+    {
+        Object digest = configMap.get (DIGEST_PROPERTY);
+        boolean use_sha256 = digest != null && DIGEST_SHA256.equalsIgnoreCase (digest.toString ().trim ());
+        return (new DeployIndex (context.getDataFile (INDEX_FILE), use_sha256));
+    }
+
+    private String sha256 (File file)
+    {
+        try (InputStream in = Files.newInputStream (file.toPath ()))
+        {
+            MessageDigest md = MessageDigest.getInstance ("SHA-256");
+            byte[] buffer = new byte [65536];
+            int count;
+
+            while ((count = in.read (buffer)) != -1)
+            {
+                md.update (buffer, 0, count);
+            }
+
+            StringBuilder sb = new StringBuilder ();
+
+            for (byte b: md.digest ())
+            {
+                sb.append (String.format ("%02x", b));
+            }
+            return (sb.toString ());
+        }
+        catch (IOException | NoSuchAlgorithmException e)
+        {
+            return ("");
+        }
+    }
+
+    // Returns true if the jar changed since it was last recorded (or was never
+    // recorded), and records its current state
+    public synchronized boolean hasChanged (File file, String location)
+    {
+        long size = file.length ();
+        long mtime = file.lastModified ();
+        String size_mtime = size + ":" + mtime + ":";
+        String previous = entries.getProperty (location);
+
+        if (previous != null && previous.startsWith (size_mtime))
+        {
+            return (false);
+        }
+
+        String sha = use_sha256? sha256 (file): "";
+        entries.setProperty (location, size_mtime + sha);
+        dirty = true;
+
+        if (previous != null && !sha.isEmpty ())
+        {
+            // Same content with a new mtime is not a change
+            return (!previous.endsWith (":" + sha));
+        }
+        return (true);
+    }
+
+    // Drops the jar, so it is considered changed next time
+    public synchronized void forget (String location)
+    {
+        dirty |= entries.remove (location) != null;
+    }
+
+    public synchronized void save ()
+    {
+        if (!dirty || index_file == null)
+        {
+            return;
+        }
+
+        File temp_file = new File (index_file.getPath () + ".tmp");
+
+        try
+        {
+            try (OutputStream out = Files.newOutputStream (temp_file.toPath ()))
+            {
+                entries.store (out, "Auto-deploy index: location = size:mtime:sha-256");
+            }
+            Files.move (temp_file.toPath (), index_file.toPath (), StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            log.warn ("Exception saving {}: {}", index_file, e.toString ());
+        }
+    }
+}
+
+// EOF
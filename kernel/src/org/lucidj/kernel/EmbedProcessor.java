@@ -16,13 +16,18 @@
 
 package org.lucidj.kernel;
 
+import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.lucidj.kernel.shared.TinyLog;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.FrameworkWiring;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
@@ -30,8 +35,24 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
 import java.util.stream.Stream;
 
 public class EmbedProcessor
@@ -43,19 +64,44 @@ public class EmbedProcessor
      **/
     public static final String EMBEDDED_DEPLOY_DIR_VALUE = "/bundles";
 
+    /**
+     * The property name used to set how many threads read and install
+     * the embedded bundles. Use 1 to process them one at a time.
+     **/
+    public static final String EMBEDDED_INSTALL_THREADS_PROPERTY = "lucidj.embedded.install.threads";
+
+    /**
+     * The property name used to enable reading the embedded bundles stored
+     * without compression straight from a memory mapping of the kernel jar.
+     * The default is true.
+     **/
+    public static final String EMBEDDED_MAPPED_PROPERTY = "lucidj.embedded.mapped";
+
     /**
      * Scan the containing jar file looking for embedded bundles,
      * and auto-install/auto-start all bundles found. The default
      * directory for embedded bundles is '/bundles'.
      *
-     * NOTICE:
+     * NOTICE: The bundles are processed as a pipeline. First all manifests
+     * are read concurrently and the bundles are grouped in dependency waves,
+     * so a bundle always lands on a wave after the bundles providing its
+     * packages, required bundles or fragment host. Every wave is installed
+     * concurrently, and the waves are installed in order, so the bundle ids
+     * (and thus the framework start order) still follow the dependencies.
+     * Once everything is installed and resolved, the bundles are started
+     * wave by wave.
+     *
+     * The embedded jars stored without compression are read from a memory
+     * mapping of the kernel jar, by their offsets on the outer jar, and fed
+     * to the framework as streams over the mapping. Compressed entries are
+     * read through the zip filesystem as usual.
      *
      * @param context The system bundle context.
      **/
     public static void process (BundleContext context)
     {
         URL embedded_bundle_url = Main.class.getResource (EMBEDDED_DEPLOY_DIR_VALUE);
-        Stream<Path> walk;
+        List<EmbeddedJar> jar_list = new ArrayList<> ();
 
         // The embedded bundles are a feature intended to preconfigure
         // the framework to a minimum set of features. After the first
@@ -85,7 +131,19 @@ public class EmbedProcessor
                 log.info ("Embedded {} not available", EMBEDDED_DEPLOY_DIR_VALUE);
                 return;
             }
-            walk = Files.walk (embedded_bundle_path, 1);
+
+            try (Stream<Path> walk = Files.walk (embedded_bundle_path, 1))
+            {
+                for (Iterator<Path> it = walk.iterator(); it.hasNext();)
+                {
+                    Path embedded_jar = it.next ();
+
+                    if (embedded_jar.getFileName ().toString ().endsWith (".jar"))
+                    {
+                        jar_list.add (new EmbeddedJar (embedded_jar));
+                    }
+                }
+            }
         }
         catch (URISyntaxException | IOException e)
         {
@@ -95,27 +153,376 @@ public class EmbedProcessor
 
         log.info ("Locating embedded bundles on {}", embedded_bundle_url);
 
-        for (Iterator<Path> it = walk.iterator(); it.hasNext();)
+        if (!"false".equalsIgnoreCase (context.getProperty (EMBEDDED_MAPPED_PROPERTY)))
+        {
+            map_kernel_jar (embedded_bundle_url, jar_list);
+        }
+
+        // Keep everything in a stable order, no matter how the jar was packed
+        Collections.sort (jar_list, (a, b) -> a.filename.compareTo (b.filename));
+
+        ExecutorService executor = Executors.newFixedThreadPool (get_install_threads (context), new InstallThreadFactory ());
+
+        try
+        {
+            read_manifests (executor, jar_list);
+            List<List<EmbeddedJar>> waves = build_waves (jar_list);
+            log.info ("Installing {} embedded bundles in {} waves", jar_list.size (), waves.size ());
+
+            for (List<EmbeddedJar> wave: waves)
+            {
+                install_wave (executor, context, wave);
+            }
+
+            start_waves (context, waves);
+        }
+        finally
         {
-            Path embedded_jar = it.next ();
-            String embedded_jar_filename = embedded_jar.getFileName ().toString ();
+            executor.shutdownNow ();
+        }
+    }
+
+    private static int get_install_threads (BundleContext context)
+    {
+        String threads_prop = context.getProperty (EMBEDDED_INSTALL_THREADS_PROPERTY);
+        int threads = Runtime.getRuntime ().availableProcessors ();
 
-            if (embedded_jar_filename.endsWith (".jar"))
+        if (threads_prop != null)
+        {
+            try
+            {
+                threads = Integer.parseInt (threads_prop.trim ());
+            }
+            catch (NumberFormatException ignore)
+            {
+                log.warn ("Invalid {}: {}", EMBEDDED_INSTALL_THREADS_PROPERTY, threads_prop);
+            }
+        }
+        return (Math.max (1, threads));
+    }
+
+    private static void map_kernel_jar (URL embedded_bundle_url, List<EmbeddedJar> jar_list)
+    {
+        File kernel_jar;
+
+        try
+        {
+            URL jar_file_url = ((JarURLConnection)embedded_bundle_url.openConnection ()).getJarFileURL ();
+            kernel_jar = new File (jar_file_url.toURI ());
+        }
+        catch (IOException | URISyntaxException | ClassCastException | IllegalArgumentException e)
+        {
+            log.debug ("Embedded bundles not on a local jar: {}", e.toString ());
+            return;
+        }
+
+        MappedJar mapped_jar = MappedJar.open (kernel_jar);
+        int mapped_count = 0;
+
+        if (mapped_jar == null)
+        {
+            return;
+        }
+
+        for (EmbeddedJar jar: jar_list)
+        {
+            // Zip filesystem paths are absolute, jar entry names are not
+            String entry_name = jar.path.toString ().substring (1);
+
+            if (mapped_jar.getStoredEntry (entry_name) != null)
+            {
+                jar.mapped_jar = mapped_jar;
+                jar.entry_name = entry_name;
+                mapped_count++;
+            }
+        }
+        log.info ("{} of {} embedded bundles mapped from {}", mapped_count, jar_list.size (), kernel_jar);
+    }
+
+    private static <T> void run_all (ExecutorService executor, List<Callable<T>> tasks)
+    {
+        try
+        {
+            for (Future<T> future: executor.invokeAll (tasks))
             {
-                // Install and start the embedded bundles
                 try
                 {
-                    String embedded_jar_uri = URLDecoder.decode (embedded_jar.toUri ().toString (), "UTF-8");
-                    Bundle embedded_bundle = context.installBundle (embedded_jar_uri);
-                    embedded_bundle.start ();
-                    log.info ("Embedded bundle {} installed from {}", embedded_bundle, embedded_jar_filename);
+                    future.get ();
                 }
-                catch (UnsupportedEncodingException | BundleException e)
+                catch (ExecutionException e)
                 {
-                    log.error ("Exception installing {}", embedded_jar.getFileName(), e);
+                    // Every task logs its own failures
+                    log.error ("Exception processing embedded bundle", e.getCause ());
                 }
             }
         }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+        }
+    }
+
+    private static void read_manifests (ExecutorService executor, List<EmbeddedJar> jar_list)
+    {
+        List<Callable<Void>> tasks = new ArrayList<> ();
+
+        for (EmbeddedJar jar: jar_list)
+        {
+            tasks.add (() ->
+            {
+                // The manifest is the first entry, so this reads just the head of the jar
+                try (InputStream is = jar.open_stream ();
+                     JarInputStream jis = new JarInputStream (is))
+                {
+                    Manifest manifest = jis.getManifest ();
+
+                    if (manifest != null)
+                    {
+                        jar.parse_headers (manifest.getMainAttributes ());
+                    }
+                }
+                catch (IOException e)
+                {
+                    log.warn ("Exception reading manifest from {}", jar.filename, e);
+                }
+                return (null);
+            });
+        }
+        run_all (executor, tasks);
+    }
+
+    private static List<List<EmbeddedJar>> build_waves (List<EmbeddedJar> jar_list)
+    {
+        Map<String, List<EmbeddedJar>> package_providers = new HashMap<> ();
+        Map<String, EmbeddedJar> bundle_providers = new HashMap<> ();
+
+        for (EmbeddedJar jar: jar_list)
+        {
+            for (String package_name: jar.exports)
+            {
+                package_providers.computeIfAbsent (package_name, k -> new ArrayList<> ()).add (jar);
+            }
+
+            if (jar.symbolic_name != null)
+            {
+                bundle_providers.putIfAbsent (jar.symbolic_name, jar);
+            }
+        }
+
+        // Link every jar to the embedded jars it depends upon
+        for (EmbeddedJar jar: jar_list)
+        {
+            for (String package_name: jar.imports)
+            {
+                List<EmbeddedJar> providers = package_providers.get (package_name);
+
+                if (providers != null)
+                {
+                    jar.depends_on.addAll (providers);
+                }
+            }
+
+            for (String bundle_name: jar.required_bundles)
+            {
+                EmbeddedJar provider = bundle_providers.get (bundle_name);
+
+                if (provider != null)
+                {
+                    jar.depends_on.add (provider);
+                }
+            }
+            jar.depends_on.remove (jar);
+        }
+
+        // Every wave takes all jars whose providers were already placed
+        List<List<EmbeddedJar>> waves = new ArrayList<> ();
+        Set<EmbeddedJar> placed = new HashSet<> ();
+        List<EmbeddedJar> pending = new ArrayList<> (jar_list);
+
+        while (!pending.isEmpty ())
+        {
+            List<EmbeddedJar> wave = new ArrayList<> ();
+
+            for (EmbeddedJar jar: pending)
+            {
+                if (placed.containsAll (jar.depends_on))
+                {
+                    wave.add (jar);
+                }
+            }
+
+            if (wave.isEmpty ())
+            {
+                // Circular dependencies, the resolver will sort them out anyway
+                log.debug ("Circular dependencies among {} embedded bundles", pending.size ());
+                wave.addAll (pending);
+            }
+
+            placed.addAll (wave);
+            pending.removeAll (wave);
+            waves.add (wave);
+        }
+        return (waves);
+    }
+
+    private static void install_wave (ExecutorService executor, BundleContext context, List<EmbeddedJar> wave)
+    {
+        List<Callable<Void>> tasks = new ArrayList<> ();
+
+        for (EmbeddedJar jar: wave)
+        {
+            tasks.add (() ->
+            {
+                try
+                {
+                    String embedded_jar_uri = URLDecoder.decode (jar.path.toUri ().toString (), "UTF-8");
+
+                    if (jar.mapped_jar == null)
+                    {
+                        jar.bundle = context.installBundle (embedded_jar_uri);
+                    }
+                    else
+                    {
+                        // Same location as before, only the bytes come from the mapping
+                        try (InputStream is = jar.open_stream ())
+                        {
+                            jar.bundle = context.installBundle (embedded_jar_uri, is);
+                        }
+                    }
+                }
+                catch (IOException | BundleException e)
+                {
+                    log.error ("Exception installing {}", jar.filename, e);
+                }
+                return (null);
+            });
+        }
+        run_all (executor, tasks);
+    }
+
+    private static void start_waves (BundleContext context, List<List<EmbeddedJar>> waves)
+    {
+        List<Bundle> installed = new ArrayList<> ();
+
+        for (List<EmbeddedJar> wave: waves)
+        {
+            for (EmbeddedJar jar: wave)
+            {
+                if (jar.bundle != null)
+                {
+                    installed.add (jar.bundle);
+                }
+            }
+        }
+
+        // Resolve everything at once, so the resolver settles before any start
+        FrameworkWiring fw_wiring = context.getBundle (0).adapt (FrameworkWiring.class);
+
+        if (fw_wiring != null && !fw_wiring.resolveBundles (installed))
+        {
+            log.warn ("Not all embedded bundles could be resolved");
+        }
+
+        for (List<EmbeddedJar> wave: waves)
+        {
+            for (EmbeddedJar jar: wave)
+            {
+                if (jar.bundle == null)
+                {
+                    continue;
+                }
+
+                try
+                {
+                    if (!jar.fragment)
+                    {
+                        jar.bundle.start ();
+                    }
+                    log.info ("Embedded bundle {} installed from {}", jar.bundle, jar.filename);
+                }
+                catch (BundleException e)
+                {
+                    log.error ("Exception starting {}", jar.filename, e);
+                }
+            }
+        }
+    }
+
+    private static class InstallThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger counter = new AtomicInteger ();
+
+        @Override // ThreadFactory
+        public Thread newThread (Runnable r)
+        {
+            Thread t = new Thread (r, "EmbedProcessor-" + counter.incrementAndGet ());
+            t.setDaemon (true);
+            return (t);
+        }
+    }
+
+    private static class EmbeddedJar
+    {
+        final Path path;
+        final String filename;
+        String symbolic_name;
+        boolean fragment;
+        Set<String> exports = new HashSet<> ();
+        Set<String> imports = new HashSet<> ();
+        Set<String> required_bundles = new HashSet<> ();
+        Set<EmbeddedJar> depends_on = new HashSet<> ();
+        MappedJar mapped_jar;
+        String entry_name;
+        volatile Bundle bundle;
+
+        EmbeddedJar (Path path)
+        {
+            this.path = path;
+            this.filename = path.getFileName ().toString ();
+        }
+
+        InputStream open_stream ()
+            throws IOException
+        {
+            InputStream is = (mapped_jar == null)? null: mapped_jar.getStoredEntryStream (entry_name);
+            return ((is != null)? is: Files.newInputStream (path));
+        }
+
+        private static List<String> clause_names (String header)
+        {
+            List<String> names = new ArrayList<> ();
+
+            if (header != null)
+            {
+                // Every clause is: name[;name...][;directive:=value][;attribute=value]
+                for (String clause: ManifestParser.parseDelimitedString (header, ","))
+                {
+                    for (String token: ManifestParser.parseDelimitedString (clause, ";"))
+                    {
+                        if (token.indexOf ('=') == -1)
+                        {
+                            names.add (token.trim ());
+                        }
+                    }
+                }
+            }
+            return (names);
+        }
+
+        void parse_headers (Attributes headers)
+        {
+            List<String> bsn = clause_names (headers.getValue (Constants.BUNDLE_SYMBOLICNAME));
+            List<String> host = clause_names (headers.getValue (Constants.FRAGMENT_HOST));
+
+            symbolic_name = bsn.isEmpty ()? null: bsn.get (0);
+            fragment = !host.isEmpty ();
+            exports.addAll (clause_names (headers.getValue (Constants.EXPORT_PACKAGE)));
+            imports.addAll (clause_names (headers.getValue (Constants.IMPORT_PACKAGE)));
+            required_bundles.addAll (clause_names (headers.getValue (Constants.REQUIRE_BUNDLE)));
+
+            // A fragment goes after its host
+            required_bundles.addAll (host);
+        }
     }
 }
 
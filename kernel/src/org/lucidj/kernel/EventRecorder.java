@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Binary lifecycle event recorder backed by a memory-mapped ring file.
+//
+// File layout (big endian):
+//
+//    Header (32 bytes)
+//       0  int   magic 'LJTR'
+//       4  int   format version
+//       8  int   record size
+//      12  int   record capacity
+//      16  long  next sequence
+//      24  long  creation time (millis)
+//
+//    Records (32 bytes each, slot = (sequence - 1) % capacity)
+//       0  long  sequence, 1-based (0 = empty slot), written last
+//       8  long  timestamp (millis)
+//      16  long  bundle id
+//      24  int   event type (BundleEvent, FrameworkEvent or ServiceEvent type)
+//      28  byte  kind (bundle, framework or service)
+//      29  byte  reserved
+//      30  short start level
+//
+// Since the records live in a shared mapping, they survive a crash of the
+// JVM and can be decoded offline with:
+//
+//    java -cp <kernel.jar> org.lucidj.kernel.EventRecorder <file> [last-n]
+//
+public class EventRecorder
+{
+    public final static byte KIND_BUNDLE    = 1;
+    public final static byte KIND_FRAMEWORK = 2;
+    public final static byte KIND_SERVICE   = 3;
+
+    private final static int MAGIC          = 0x4C4A5452;  // LJTR
+    private final static int VERSION        = 1;
+    private final static int HEADER_SIZE    = 32;
+    private final static int RECORD_SIZE    = 32;
+
+    // The whole ring must fit on a single mapping
+    public final static int MAX_RECORDS     = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private final static int H_MAGIC        = 0;
+    private final static int H_VERSION      = 4;
+    private final static int H_RECORD_SIZE  = 8;
+    private final static int H_CAPACITY     = 12;
+    private final static int H_NEXT_SEQ     = 16;
+    private final static int H_CREATED      = 24;
+
+    private final static int R_SEQUENCE     = 0;
+    private final static int R_TIMESTAMP    = 8;
+    private final static int R_BUNDLE_ID    = 16;
+    private final static int R_EVENT_TYPE   = 24;
+    private final static int R_KIND         = 28;
+    private final static int R_START_LEVEL  = 30;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final AtomicLong next_sequence;
+
+    private EventRecorder (FileChannel channel, MappedByteBuffer buffer, int capacity, long next_sequence)
+    {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.next_sequence = new AtomicLong (next_sequence);
+    }
+
+    public static EventRecorder open (File file, int capacity)
+        throws IOException
+    {
+        long size = HEADER_SIZE + (long)capacity * RECORD_SIZE;
+        FileChannel channel = FileChannel.open (file.toPath (), StandardOpenOption.CREATE,
+                                                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            boolean reuse = channel.size () == size;
+            MappedByteBuffer buffer = channel.map (FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order (ByteOrder.BIG_ENDIAN);
+
+            if (reuse
+                && buffer.getInt (H_MAGIC) == MAGIC
+                && buffer.getInt (H_VERSION) == VERSION
+                && buffer.getInt (H_RECORD_SIZE) == RECORD_SIZE
+                && buffer.getInt (H_CAPACITY) == capacity)
+            {
+                // Keep the previous records, so we have them after a crash
+                return (new EventRecorder (channel, buffer, capacity, get_next_sequence (buffer, RECORD_SIZE, capacity)));
+            }
+
+            for (int pos = 0; pos < size; pos += 8)
+            {
+                buffer.putLong (pos, 0);
+            }
+            buffer.putInt (H_MAGIC, MAGIC);
+            buffer.putInt (H_VERSION, VERSION);
+            buffer.putInt (H_RECORD_SIZE, RECORD_SIZE);
+            buffer.putInt (H_CAPACITY, capacity);
+            buffer.putLong (H_NEXT_SEQ, 1);
+            buffer.putLong (H_CREATED, System.currentTimeMillis ());
+            return (new EventRecorder (channel, buffer, capacity, 1));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close ();
+            throw (e);
+        }
+    }
+
+    // The header is written racily by concurrent writers and may be behind the
+    // records after a crash, so the records themselves have the last word
+    private static long get_next_sequence (MappedByteBuffer buffer, int record_size, int capacity)
+    {
+        long next_sequence = buffer.getLong (H_NEXT_SEQ);
+
+        for (int i = 0; i < capacity; i++)
+        {
+            next_sequence = Math.max (next_sequence, buffer.getLong (HEADER_SIZE + i * record_size) + 1);
+        }
+        return (next_sequence);
+    }
+
+    public void record (byte kind, int event_type, long bundle_id, int start_level)
+    {
+        long sequence = next_sequence.getAndIncrement ();
+        int pos = HEADER_SIZE + (int)((sequence - 1) % capacity) * RECORD_SIZE;
+
+        // Absolute puts only, so concurrent writers never share buffer state
+        buffer.putLong (pos + R_SEQUENCE, 0);
+        buffer.putLong (pos + R_TIMESTAMP, System.currentTimeMillis ());
+        buffer.putLong (pos + R_BUNDLE_ID, bundle_id);
+        buffer.putInt (pos + R_EVENT_TYPE, event_type);
+        buffer.put (pos + R_KIND, kind);
+        buffer.putShort (pos + R_START_LEVEL, (short)start_level);
+        buffer.putLong (pos + R_SEQUENCE, sequence);
+        buffer.putLong (H_NEXT_SEQ, sequence + 1);
+    }
+
+    public void flush ()
+    {
+        // The mapping stays valid, so late events are still recorded
+        buffer.force ();
+    }
+
+    //--------------------------------------------------------
+    // Offline reader, decodes the records in sequence order
+    //--------------------------------------------------------
+
+    private static String get_kind_string (byte kind)
+    {
+        switch (kind)
+        {
+            case KIND_BUNDLE:    return ("BUNDLE");
+            case KIND_FRAMEWORK: return ("FRAMEWORK");
+            case KIND_SERVICE:   return ("SERVICE");
+        }
+        return ("Kind:Unknown[" + kind + "]");
+    }
+
+    private static String get_type_string (byte kind, int type)
+    {
+        switch (kind)
+        {
+            case KIND_BUNDLE:    return (Tracer.get_event_string (type));
+            case KIND_FRAMEWORK: return (Tracer.get_fw_event_string (type));
+            case KIND_SERVICE:   return (Tracer.get_svc_event_string (type));
+        }
+        return (Integer.toString (type));
+    }
+
+    public static void dump (File file, int last_n)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open (file.toPath (), StandardOpenOption.READ))
+        {
+            MappedByteBuffer buffer = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+            buffer.order (ByteOrder.BIG_ENDIAN);
+
+            if (channel.size () < HEADER_SIZE || buffer.getInt (H_MAGIC) != MAGIC)
+            {
+                throw new IOException ("Not an event recorder file: " + file);
+            }
+
+            int record_size = buffer.getInt (H_RECORD_SIZE);
+            int capacity = buffer.getInt (H_CAPACITY);
+            long next_sequence = get_next_sequence (buffer, record_size, capacity);
+            long first_sequence = Math.max (1, next_sequence - Math.min (capacity, last_n));
+            SimpleDateFormat timestamp_format = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss.SSS");
+
+            System.out.println ("# " + file + ": version " + buffer.getInt (H_VERSION)
+                + ", " + capacity + " records, created " + timestamp_format.format (new Date (buffer.getLong (H_CREATED))));
+
+            List<String> torn = new ArrayList<> ();
+
+            for (long sequence = first_sequence; sequence < next_sequence; sequence++)
+            {
+                int pos = HEADER_SIZE + (int)((sequence - 1) % capacity) * record_size;
+
+                if (buffer.getLong (pos + R_SEQUENCE) != sequence)
+                {
+                    // Overwritten or partially written when the process went down
+                    torn.add (Long.toString (sequence));
+                    continue;
+                }
+
+                byte kind = buffer.get (pos + R_KIND);
+                System.out.println (sequence
+                    + " " + timestamp_format.format (new Date (buffer.getLong (pos + R_TIMESTAMP)))
+                    + " " + get_kind_string (kind)
+                    + " [" + buffer.getLong (pos + R_BUNDLE_ID) + "]"
+                    + " <" + get_type_string (kind, buffer.getInt (pos + R_EVENT_TYPE)) + ">"
+                    + " level=" + buffer.getShort (pos + R_START_LEVEL));
+            }
+
+            if (!torn.isEmpty ())
+            {
+                System.out.println ("# Incomplete records: " + String.join (",", torn));
+            }
+        }
+    }
+
+    public static void main (String[] args)
+        throws IOException
+    {
+        if (args.length < 1 || args.length > 2)
+        {
+            System.out.println ("Usage: EventRecorder <record-file> [last-n]");
+            System.exit (1);
+        }
+        dump (new File (args [0]), (args.length == 2)? Integer.parseInt (args [1]): Integer.MAX_VALUE);
+    }
+}
+
+// EOF
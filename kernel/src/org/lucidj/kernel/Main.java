@@ -234,8 +234,22 @@ public class Main
             System.exit(0);
         }
 
+        // Load system and configuration properties, straight from the
+        // compiled snapshot when none of their sources changed.
+        ConfigSnapshot snapshot = ConfigSnapshot.open(
+            getPropertiesURL(SYSTEM_PROPERTIES_PROP, SYSTEM_PROPERTIES_FILE_VALUE),
+            getPropertiesURL(CONFIG_PROPERTIES_PROP, CONFIG_PROPERTIES_FILE_VALUE));
+        Map<String, String> systemProps = null;
+
         // Load system properties.
-        Main.loadSystemProperties();
+        if (snapshot.isValid())
+        {
+            snapshot.applySystemProperties();
+        }
+        else
+        {
+            systemProps = Main.loadSystemProperties();
+        }
 
         // Avoid java.lang.IllegalStateException: Unable to create a system terminal
         //       at org.jline.terminal.TerminalBuilder.doBuild(TerminalBuilder.java:273)
@@ -249,7 +263,16 @@ public class Main
         }
 
         // Read configuration properties.
-        Map<String, String> configProps = Main.loadConfigProperties();
+        Map<String, String> configProps;
+        if (snapshot.isValid())
+        {
+            configProps = snapshot.getConfigProperties();
+        }
+        else
+        {
+            configProps = Main.loadConfigProperties();
+            snapshot.save(systemProps, configProps);
+        }
         // If no configuration properties were found, then create
         // an empty properties object.
         if (configProps == null)
@@ -275,6 +298,12 @@ public class Main
             configProps.put(Constants.FRAMEWORK_STORAGE, cacheDir);
         }
 
+        // A training run leaves the stage cache alone, see bin/felix --cds-train
+        if (TrainingRun.isEnabled())
+        {
+            TrainingRun.prepare(getFelixCacheDir(configProps), configProps);
+        }
+
         // If enabled, register a shutdown hook to make sure the framework is
         // cleanly shutdown when the VM exits.
         String enableHook = configProps.get(SHUTDOWN_HOOK_PROP);
@@ -312,6 +341,17 @@ public class Main
             System.err.println ("Warning: Could not setup AdminD directory: " + ex);
         }
 
+        // On the very first boot, start from the pre-installed bundles
+        // carried by the kernel jar, unless it's the build making them.
+        File felixCacheDir = getFelixCacheDir(configProps);
+        String snapshotBuild = System.getProperty(CacheSnapshot.SNAPSHOT_BUILD_PROPERTY);
+        if (snapshotBuild == null
+            && !Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT.equals(
+                configProps.get(Constants.FRAMEWORK_STORAGE_CLEAN)))
+        {
+            CacheSnapshot.seed(felixCacheDir);
+        }
+
         try
         {
             // Create an instance of the framework.
@@ -322,7 +362,13 @@ public class Main
             m_fwk.init();
 
             // Initialize framework+bundle tracer
-            Tracer.start (m_fwk.getBundleContext ());
+            Tracer tracer = Tracer.start (m_fwk.getBundleContext ());
+
+            // Boot up to the final start level and leave, see bin/felix --cds-train
+            if (TrainingRun.isEnabled())
+            {
+                TrainingRun.start(m_fwk);
+            }
 
             // Setup TinyLog on stdout and stderr
             TinyLog log = new TinyLog ();
@@ -330,18 +376,41 @@ public class Main
             System.setErr (log.newLoggingStream (System.err, LogService.LOG_ERROR));
             System.out.println ("Server booting on " + new Date ());
 
-            // Enable basic sanity check
-            start_sanity_check ();
+            // Enable basic sanity check, a training run cache is scratch anyway
+            if (!TrainingRun.isEnabled())
+            {
+                start_sanity_check (felixCacheDir);
+            }
 
             // Use the system bundle context to process the auto-deploy
             // and auto-install/auto-start properties.
             EmbedProcessor.process(m_fwk.getBundleContext());
+            tracer.phase ("embedded bundles");
+
+            if (snapshotBuild != null)
+            {
+                // Headless boot from the kernel build, all we need is the cache.
+                // The build must fail along, so don't leave through the catch below.
+                try
+                {
+                    CacheSnapshot.build(m_fwk, felixCacheDir, new File(snapshotBuild));
+                }
+                catch (Exception ex)
+                {
+                    System.err.println("Could not build cache snapshot: " + ex);
+                    ex.printStackTrace();
+                    System.exit(1);
+                }
+                System.exit(0);
+            }
             AutoProcessor.process(configProps, m_fwk.getBundleContext());
+            tracer.phase ("auto-deploy");
             FrameworkEvent event;
             do
             {
                 // Start the framework.
                 m_fwk.start();
+                tracer.phase ("framework start");
 
                 // TODO: SHOW WHICH THREADS ARE DELAYING THE SHUTDOWN (ONCE EVERY SECOND)
                 // Wait for framework to stop to exit the VM.
@@ -362,61 +431,35 @@ public class Main
         }
     }
 
-    private static void start_sanity_check ()
+    /**
+     * Returns the bundle cache directory the framework will use, resolving
+     * a relative storage against felix.cache.rootdir the same way Felix does.
+     * @param configProps The framework configuration properties.
+     * @return The bundle cache directory.
+    **/
+    private static File getFelixCacheDir(Map<String, String> configProps)
     {
-        String system_data = System.getProperty ("system.data", ".");
-        final File system_data_dir = new File (system_data);
-
-        String felix_cache_rootdir = System.getProperty ("felix.cache.rootdir", system_data);
-        final File felix_cache_dir = new File (felix_cache_rootdir, "felix-cache");
-
-        Thread sanity_thread = new Thread ("System Sanity auto-check")
+        String storage = configProps.get(Constants.FRAMEWORK_STORAGE);
+        File cacheDir = new File((storage == null) ? "felix-cache" : storage);
+        if (!cacheDir.isAbsolute())
         {
-            public void run ()
+            String rootDir = configProps.get("felix.cache.rootdir");
+            if (rootDir == null)
             {
-                while (!isInterrupted ())
-                {
-                    try
-                    {
-                        String message = null;
-                        Thread.sleep (1000);
+                rootDir = System.getProperty("felix.cache.rootdir", System.getProperty("system.data", "."));
+            }
+            cacheDir = new File(rootDir, cacheDir.getPath());
+        }
+        return cacheDir;
+    }
 
-                        if (!system_data_dir.exists ())
-                        {
-                            message = "ERROR: System data " + system_data + " missing";
-                        }
-                        else if (!felix_cache_dir.exists ())
-                        {
-                            message = "ERROR: Felix cache " + system_data + " missing";
-                        }
-                        else
-                        {
-                            // All nice and good...
-                            continue;
-                        }
+    private static void start_sanity_check (File felix_cache_dir)
+    {
+        String system_data = System.getProperty ("system.data", ".");
+        File system_data_dir = new File (system_data);
 
-                        // Things got awry -- let's shutdown the framework
-                        if (m_fwk != null)
-                        {
-                            System.err.println (message + " -- WILL SHUTDOWN NOW");
-                            m_fwk.stop ();
-                            break;
-                        }
-                    }
-                    catch (InterruptedException e)
-                    {
-                        // Just ignore
-                    }
-                    catch (BundleException e)
-                    {
-                        System.err.println ("ERROR: Unable to request shutdown due to exception: " + e.toString());
-                        break;
-                    }
-                }
-            }
-        };
-        sanity_thread.setDaemon (true);     // Go down with the ship
-        sanity_thread.start ();
+        // Watches both and shuts the framework down if any goes missing
+        SanityGuard.start (m_fwk, system_data_dir, felix_cache_dir);
     }
 
 
@@ -457,72 +500,88 @@ public class Main
 
     /**
      * <p>
-     * Loads the properties in the system property file associated with the
-     * framework installation into <tt>System.setProperty()</tt>. These properties
-     * are not directly used by the framework in anyway. By default, the system
-     * property file is located in the <tt>conf/</tt> directory of the Felix
-     * installation directory and is called "<tt>system.properties</tt>". The
-     * installation directory of Felix is assumed to be the parent directory of
-     * the <tt>felix.jar</tt> file as found on the system class path property.
-     * The precise file from which to load system properties can be set by
-     * initializing the "<tt>felix.system.properties</tt>" system property to an
-     * arbitrary URL.
+     * Locates a properties file, either from the URL given by the specified
+     * system property or from the <tt>conf/</tt> directory of the Felix
+     * installation directory, which is the parent directory of the directory
+     * containing the <tt>felix.jar</tt> file.
      * </p>
+     * @param customProp The system property that may hold the file URL.
+     * @param fileName The default file name in the configuration directory.
+     * @return The properties file URL or <tt>null</tt> if there was an error.
     **/
-    public static void loadSystemProperties()
+    private static URL getPropertiesURL(String customProp, String fileName)
     {
-        // The system properties file is either specified by a system
-        // property or it is in the same directory as the Felix JAR file.
-        // Try to load it from one of these places.
-
         // See if the property URL was specified as a property.
-        URL propURL = null;
-        String custom = System.getProperty(SYSTEM_PROPERTIES_PROP);
+        String custom = System.getProperty(customProp);
         if (custom != null)
         {
             try
             {
-                propURL = new URL(custom);
+                return new URL(custom);
             }
             catch (MalformedURLException ex)
             {
                 System.err.print("Main: " + ex);
-                return;
+                return null;
             }
         }
+
+        // Determine where the configuration directory is by figuring
+        // out where felix.jar is located on the system class path.
+        File confDir = null;
+        String classpath = System.getProperty("java.class.path");
+        int index = classpath.toLowerCase().indexOf("felix.jar");
+        int start = classpath.lastIndexOf(File.pathSeparator, index) + 1;
+        if (index >= start)
+        {
+            // Get the path of the felix.jar file.
+            String jarLocation = classpath.substring(start, index);
+            // Calculate the conf directory based on the parent
+            // directory of the felix.jar directory.
+            confDir = new File(
+                new File(new File(jarLocation).getAbsolutePath()).getParent(),
+                CONFIG_DIRECTORY);
+        }
         else
         {
-            // Determine where the configuration directory is by figuring
-            // out where felix.jar is located on the system class path.
-            File confDir = null;
-            String classpath = System.getProperty("java.class.path");
-            int index = classpath.toLowerCase().indexOf("felix.jar");
-            int start = classpath.lastIndexOf(File.pathSeparator, index) + 1;
-            if (index >= start)
-            {
-                // Get the path of the felix.jar file.
-                String jarLocation = classpath.substring(start, index);
-                // Calculate the conf directory based on the parent
-                // directory of the felix.jar directory.
-                confDir = new File(
-                    new File(new File(jarLocation).getAbsolutePath()).getParent(),
-                    CONFIG_DIRECTORY);
-            }
-            else
-            {
-                // Can't figure it out so use the current directory as default.
-                confDir = new File(System.getProperty("user.dir"), CONFIG_DIRECTORY);
-            }
+            // Can't figure it out so use the current directory as default.
+            confDir = new File(System.getProperty("user.dir"), CONFIG_DIRECTORY);
+        }
 
-            try
-            {
-                propURL = new File(confDir, SYSTEM_PROPERTIES_FILE_VALUE).toURL();
-            }
-            catch (MalformedURLException ex)
-            {
-                System.err.print("Main: " + ex);
-                return;
-            }
+        try
+        {
+            return new File(confDir, fileName).toURL();
+        }
+        catch (MalformedURLException ex)
+        {
+            System.err.print("Main: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Loads the properties in the system property file associated with the
+     * framework installation into <tt>System.setProperty()</tt>. These properties
+     * are not directly used by the framework in anyway. By default, the system
+     * property file is located in the <tt>conf/</tt> directory of the Felix
+     * installation directory and is called "<tt>system.properties</tt>". The
+     * installation directory of Felix is assumed to be the parent directory of
+     * the <tt>felix.jar</tt> file as found on the system class path property.
+     * The precise file from which to load system properties can be set by
+     * initializing the "<tt>felix.system.properties</tt>" system property to an
+     * arbitrary URL.
+     * </p>
+    **/
+    public static Map<String, String> loadSystemProperties()
+    {
+        // The system properties file is either specified by a system
+        // property or it is in the same directory as the Felix JAR file.
+        // Try to load it from one of these places.
+        URL propURL = getPropertiesURL(SYSTEM_PROPERTIES_PROP, SYSTEM_PROPERTIES_FILE_VALUE);
+        if (propURL == null)
+        {
+            return null;
         }
 
         // Read the properties file.
@@ -551,16 +610,20 @@ public class Main
             {
                 // Nothing we can do.
             }
-            return;
+            return null;
         }
 
         // Perform variable substitution on specified properties.
+        Map<String, String> map = new HashMap<String, String>();
         for (Enumeration e = props.propertyNames(); e.hasMoreElements(); )
         {
             String name = (String) e.nextElement();
-            System.setProperty(name,
-                Util.substVars(props.getProperty(name), name, null, null));
+            String value = Util.substVars(props.getProperty(name), name, null, null);
+            System.setProperty(name, value);
+            map.put(name, value);
         }
+
+        return map;
     }
 
     /**
@@ -585,55 +648,10 @@ public class Main
         // property or it is in the conf/ directory of the Felix
         // installation directory.  Try to load it from one of these
         // places.
-
-        // See if the property URL was specified as a property.
-        URL propURL = null;
-        String custom = System.getProperty(CONFIG_PROPERTIES_PROP);
-        if (custom != null)
+        URL propURL = getPropertiesURL(CONFIG_PROPERTIES_PROP, CONFIG_PROPERTIES_FILE_VALUE);
+        if (propURL == null)
         {
-            try
-            {
-                propURL = new URL(custom);
-            }
-            catch (MalformedURLException ex)
-            {
-                System.err.print("Main: " + ex);
-                return null;
-            }
-        }
-        else
-        {
-            // Determine where the configuration directory is by figuring
-            // out where felix.jar is located on the system class path.
-            File confDir = null;
-            String classpath = System.getProperty("java.class.path");
-            int index = classpath.toLowerCase().indexOf("felix.jar");
-            int start = classpath.lastIndexOf(File.pathSeparator, index) + 1;
-            if (index >= start)
-            {
-                // Get the path of the felix.jar file.
-                String jarLocation = classpath.substring(start, index);
-                // Calculate the conf directory based on the parent
-                // directory of the felix.jar directory.
-                confDir = new File(
-                    new File(new File(jarLocation).getAbsolutePath()).getParent(),
-                    CONFIG_DIRECTORY);
-            }
-            else
-            {
-                // Can't figure it out so use the current directory as default.
-                confDir = new File(System.getProperty("user.dir"), CONFIG_DIRECTORY);
-            }
-
-            try
-            {
-                propURL = new File(confDir, CONFIG_PROPERTIES_FILE_VALUE).toURL();
-            }
-            catch (MalformedURLException ex)
-            {
-                System.err.print("Main: " + ex);
-                return null;
-            }
+            return null;
         }
 
         // Read the properties file.
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+import org.lucidj.kernel.shared.TinyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+// Read-only memory-mapped view of a jar file. The central directory is
+// walked once to find the offsets of every entry stored without compression
+// (method 0), and those entries are handed out as slices of the mapping, so
+// reading them costs no inflater, no extraction and no extra copy besides
+// the one done by whoever consumes the bytes. Compressed entries are left
+// to the usual jar handling.
+public class MappedJar
+{
+    private static TinyLog log = new TinyLog (MappedJar.class);
+
+    private final static int EOCD_SIGNATURE   = 0x06054b50;
+    private final static int CEN_SIGNATURE    = 0x02014b50;
+    private final static int LOC_SIGNATURE    = 0x04034b50;
+    private final static int EOCD_MIN_SIZE    = 22;
+    private final static int CEN_HEADER_SIZE  = 46;
+    private final static int LOC_HEADER_SIZE  = 30;
+    private final static int MAX_COMMENT_SIZE = 0xFFFF;
+    private final static long ZIP64_MAGIC     = 0xFFFFFFFFL;
+
+    private final File file;
+    private final ByteBuffer mapping;
+    private final Map<String, ByteBuffer> stored_entries = new HashMap<> ();
+
+    private MappedJar (File file, ByteBuffer mapping)
+    {
+        this.file = file;
+        this.mapping = mapping;
+    }
+
+    // Maps the jar file and indexes its stored entries, or returns null if it can't be done
+    public static MappedJar open (File file)
+    {
+        try (FileChannel channel = FileChannel.open (file.toPath (), StandardOpenOption.READ))
+        {
+            if (channel.size () > Integer.MAX_VALUE)
+            {
+                log.debug ("{} too large to be mapped", file);
+                return (null);
+            }
+
+            // The mapping stays valid after the channel is closed
+            ByteBuffer mapping = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+            MappedJar mapped_jar = new MappedJar (file, mapping.order (ByteOrder.LITTLE_ENDIAN));
+            mapped_jar.read_central_directory ();
+            return (mapped_jar);
+        }
+        catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e)
+        {
+            log.warn ("Unable to map {}: {}", file, e.toString ());
+            return (null);
+        }
+    }
+
+    private int find_end_of_central_directory ()
+    {
+        int limit = Math.max (0, mapping.limit () - EOCD_MIN_SIZE - MAX_COMMENT_SIZE);
+
+        for (int pos = mapping.limit () - EOCD_MIN_SIZE; pos >= limit; pos--)
+        {
+            if (mapping.getInt (pos) == EOCD_SIGNATURE)
+            {
+                return (pos);
+            }
+        }
+        throw new IllegalArgumentException ("End of central directory not found");
+    }
+
+    private void read_central_directory ()
+    {
+        int eocd = find_end_of_central_directory ();
+        int entry_count = mapping.getShort (eocd + 10) & 0xFFFF;
+        long cen_offset = mapping.getInt (eocd + 16) & ZIP64_MAGIC;
+
+        if (cen_offset == ZIP64_MAGIC)
+        {
+            // Zip64 archives are not expected here, use the regular handling
+            throw new IllegalArgumentException ("Zip64 not supported");
+        }
+
+        int pos = (int)cen_offset;
+
+        for (int i = 0; i < entry_count; i++)
+        {
+            if (mapping.getInt (pos) != CEN_SIGNATURE)
+            {
+                throw new IllegalArgumentException ("Bad central directory entry at " + pos);
+            }
+
+            int method = mapping.getShort (pos + 10) & 0xFFFF;
+            long compressed_size = mapping.getInt (pos + 20) & ZIP64_MAGIC;
+            long size = mapping.getInt (pos + 24) & ZIP64_MAGIC;
+            int name_length = mapping.getShort (pos + 28) & 0xFFFF;
+            int extra_length = mapping.getShort (pos + 30) & 0xFFFF;
+            int comment_length = mapping.getShort (pos + 32) & 0xFFFF;
+            long local_offset = mapping.getInt (pos + 42) & ZIP64_MAGIC;
+
+            if (method == 0 && size == compressed_size && size != ZIP64_MAGIC && local_offset != ZIP64_MAGIC)
+            {
+                byte[] name_bytes = new byte [name_length];
+                ByteBuffer name_buffer = mapping.duplicate ();
+                name_buffer.position (pos + CEN_HEADER_SIZE);
+                name_buffer.get (name_bytes);
+                String name = new String (name_bytes, StandardCharsets.UTF_8);
+                ByteBuffer data = get_data (name, (int)local_offset, (int)size);
+
+                if (data != null)
+                {
+                    stored_entries.put (name, data);
+                }
+            }
+            pos += CEN_HEADER_SIZE + name_length + extra_length + comment_length;
+        }
+    }
+
+    private ByteBuffer get_data (String name, int local_offset, int size)
+    {
+        if (mapping.getInt (local_offset) != LOC_SIGNATURE)
+        {
+            log.debug ("Bad local header for {} on {}", name, file);
+            return (null);
+        }
+
+        // The local extra field may differ from the central one
+        int name_length = mapping.getShort (local_offset + 26) & 0xFFFF;
+        int extra_length = mapping.getShort (local_offset + 28) & 0xFFFF;
+        int data_offset = local_offset + LOC_HEADER_SIZE + name_length + extra_length;
+
+        if (data_offset + size > mapping.limit ())
+        {
+            log.debug ("Truncated entry {} on {}", name, file);
+            return (null);
+        }
+
+        ByteBuffer data = mapping.duplicate ();
+        data.position (data_offset);
+        data.limit (data_offset + size);
+        return (data.slice ().asReadOnlyBuffer ());
+    }
+
+    public File getFile ()
+    {
+        return (file);
+    }
+
+    public int getStoredCount ()
+    {
+        return (stored_entries.size ());
+    }
+
+    // Returns the bytes of an uncompressed entry, or null if it isn't stored as is
+    public ByteBuffer getStoredEntry (String name)
+    {
+        ByteBuffer data = stored_entries.get (name);
+        return ((data == null)? null: data.duplicate ());
+    }
+
+    public InputStream getStoredEntryStream (String name)
+    {
+        ByteBuffer data = getStoredEntry (name);
+        return ((data == null)? null: new BufferInputStream (data));
+    }
+
+    private static class BufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        BufferInputStream (ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override // InputStream
+        public int read ()
+        {
+            return (buffer.hasRemaining ()? (buffer.get () & 0xFF): -1);
+        }
+
+        @Override // InputStream
+        public int read (byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return (0);
+            }
+
+            if (!buffer.hasRemaining ())
+            {
+                return (-1);
+            }
+
+            len = Math.min (len, buffer.remaining ());
+            buffer.get (b, off, len);
+            return (len);
+        }
+
+        @Override // InputStream
+        public long skip (long n)
+        {
+            int skipped = (int)Math.max (0, Math.min (n, buffer.remaining ()));
+            buffer.position (buffer.position () + skipped);
+            return (skipped);
+        }
+
+        @Override // InputStream
+        public int available ()
+        {
+            return (buffer.remaining ());
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+import org.osgi.framework.BundleException;
+import org.osgi.framework.launch.Framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+// Shuts the framework down when system.data or the felix cache disappear.
+//
+// Instead of checking both directories every second, the parent directories
+// are watched for deletions and renames, so a missing directory is detected
+// as soon as the event arrives. A long fallback poll covers the filesystems
+// where WatchService is emulated or unavailable, and the watch keys that
+// become invalid. The check latency and the last verification time are
+// exposed by the org.lucidj.kernel:type=SanityGuard MBean.
+public class SanityGuard implements SanityGuardMBean
+{
+    // Fallback poll interval (millis)
+    public static final String POLL_PROPERTY = "lucidj.sanity.poll";
+    public static final long   POLL_VALUE    = 60000;
+
+    // Poll interval when the filesystem can't be watched, as it used to be
+    private static final long NO_WATCH_POLL_MS = 1000;
+
+    private final Framework framework;
+    private final File system_data_dir;
+    private final File felix_cache_dir;
+    private final long poll_ms;
+    private WatchService watcher;
+
+    private volatile long last_verification;
+    private volatile long last_check_latency;
+    private volatile long check_count;
+    private volatile long event_count;
+
+    private SanityGuard (Framework framework, File system_data_dir, File felix_cache_dir, long poll_ms)
+    {
+        this.framework = framework;
+        this.system_data_dir = system_data_dir.getAbsoluteFile ();
+        this.felix_cache_dir = felix_cache_dir.getAbsoluteFile ();
+
+        Set<Path> watch_dirs = new LinkedHashSet<> ();
+
+        for (File dir: new File[] { this.system_data_dir, this.felix_cache_dir })
+        {
+            File parent = dir.getParentFile ();
+
+            if (parent != null)
+            {
+                watch_dirs.add (parent.toPath ());
+            }
+        }
+
+        try
+        {
+            watcher = FileSystems.getDefault ().newWatchService ();
+
+            for (Path dir: watch_dirs)
+            {
+                dir.register (watcher, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            System.err.println ("WARNING: Sanity check falling back to polling: " + e.toString ());
+
+            if (watcher != null)
+            {
+                try
+                {
+                    watcher.close ();
+                }
+                catch (IOException ignore) {};
+            }
+            watcher = null;
+        }
+        this.poll_ms = (watcher == null)? NO_WATCH_POLL_MS: poll_ms;
+    }
+
+    public static SanityGuard start (Framework framework, File system_data_dir, File felix_cache_dir)
+    {
+        String poll_prop = framework.getBundleContext ().getProperty (POLL_PROPERTY);
+        long poll_ms = POLL_VALUE;
+
+        try
+        {
+            poll_ms = (poll_prop == null)? POLL_VALUE: Math.max (1000, Long.parseLong (poll_prop.trim ()));
+        }
+        catch (NumberFormatException ignore) {};
+
+        final SanityGuard guard = new SanityGuard (framework, system_data_dir, felix_cache_dir, poll_ms);
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer ().registerMBean (guard,
+                new ObjectName ("org.lucidj.kernel:type=SanityGuard"));
+        }
+        catch (Exception e)
+        {
+            // Not fatal, we just don't expose the stats
+            System.err.println ("WARNING: Unable to register SanityGuard MBean: " + e.toString ());
+        }
+
+        Thread sanity_thread = new Thread (guard::guard_loop, "System Sanity auto-check");
+        sanity_thread.setDaemon (true);     // Go down with the ship
+        sanity_thread.start ();
+        return (guard);
+    }
+
+    // Returns the problem found, or null if all is nice and good
+    private String check (long trigger_time)
+    {
+        String message = null;
+
+        if (!system_data_dir.exists ())
+        {
+            message = "ERROR: System data " + system_data_dir + " missing";
+        }
+        else if (!felix_cache_dir.exists ())
+        {
+            message = "ERROR: Felix cache " + felix_cache_dir + " missing";
+        }
+        else
+        {
+            last_verification = System.currentTimeMillis ();
+        }
+
+        check_count++;
+        last_check_latency = (System.nanoTime () - trigger_time) / 1000;
+        return (message);
+    }
+
+    private void guard_loop ()
+    {
+        try
+        {
+            long trigger_time = System.nanoTime ();
+
+            while (true)
+            {
+                String message = check (trigger_time);
+
+                if (message != null)
+                {
+                    // Things got awry -- let's shutdown the framework
+                    System.err.println (message + " -- WILL SHUTDOWN NOW");
+                    framework.stop ();
+                    break;
+                }
+
+                if (watcher == null)
+                {
+                    Thread.sleep (poll_ms);
+                }
+                else
+                {
+                    WatchKey key = watcher.poll (poll_ms, TimeUnit.MILLISECONDS);
+
+                    if (key != null)
+                    {
+                        event_count += key.pollEvents ().size ();
+
+                        // An invalid key means the watched dir itself is gone,
+                        // from now on only the poll is left for it
+                        key.reset ();
+                    }
+                }
+                trigger_time = System.nanoTime ();
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ignore)
+        {
+            // Just leave
+        }
+        catch (BundleException e)
+        {
+            System.err.println ("ERROR: Unable to request shutdown due to exception: " + e.toString());
+        }
+        finally
+        {
+            if (watcher != null)
+            {
+                try
+                {
+                    watcher.close ();
+                }
+                catch (IOException ignore) {};
+            }
+        }
+    }
+
+    @Override // SanityGuardMBean
+    public long getLastVerification ()
+    {
+        return (last_verification);
+    }
+
+    @Override // SanityGuardMBean
+    public long getLastCheckLatencyMicros ()
+    {
+        return (last_check_latency);
+    }
+
+    @Override // SanityGuardMBean
+    public long getCheckCount ()
+    {
+        return (check_count);
+    }
+
+    @Override // SanityGuardMBean
+    public long getEventCount ()
+    {
+        return (event_count);
+    }
+
+    @Override // SanityGuardMBean
+    public long getPollIntervalMillis ()
+    {
+        return (poll_ms);
+    }
+
+    @Override // SanityGuardMBean
+    public boolean isEventDriven ()
+    {
+        return (watcher != null);
+    }
+}
+
+// EOF
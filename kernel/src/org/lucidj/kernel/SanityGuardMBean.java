@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+public interface SanityGuardMBean
+{
+    // Wall clock time (millis) of the last successful verification
+    long getLastVerification ();
+
+    // How long the last check took, from the triggering event to the verdict
+    long getLastCheckLatencyMicros ();
+
+    long getCheckCount ();
+    long getEventCount ();
+    long getPollIntervalMillis ();
+    boolean isEventDriven ();
+}
+
+// EOF
@@ -22,18 +22,115 @@ import org.osgi.framework.startlevel.BundleStartLevel;
 import org.osgi.framework.startlevel.FrameworkStartLevel;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Tracer implements FrameworkListener, SynchronousBundleListener, ServiceListener
 {
+    // How service events are traced: off, events (no stack capture) or stacks
+    public static final String SERVICE_MODE_PROPERTY   = "lucidj.tracer.service.mode";
+    // Capture the stack for 1 out of every N service events (stacks mode)
+    public static final String SERVICE_SAMPLE_PROPERTY = "lucidj.tracer.service.sample";
+    // Max number of stack frames logged per captured stack
+    public static final String SERVICE_FRAMES_PROPERTY = "lucidj.tracer.service.frames";
+    // Max service events per second traced for each bundle, 0 is unlimited
+    public static final String SERVICE_RATE_PROPERTY   = "lucidj.tracer.service.rate";
+    // How many service events a bundle may trace in a burst, defaults to rate
+    public static final String SERVICE_BURST_PROPERTY  = "lucidj.tracer.service.burst";
+
+    // Where the lifecycle events go: text (framework.log), binary (event recorder) or both
+    public static final String OUTPUT_PROPERTY           = "lucidj.tracer.output";
+    // The event recorder file, defaults to framework.rec on the log directory
+    public static final String RECORDER_FILE_PROPERTY    = "lucidj.tracer.recorder.file";
+    // How many events the recorder ring keeps
+    public static final String RECORDER_RECORDS_PROPERTY = "lucidj.tracer.recorder.records";
+
+    // Profile the boot until the final start level and log the timeline report
+    public static final String PROFILE_PROPERTY          = "lucidj.tracer.profile";
+    public static final String FINAL_STARTLEVEL_PROPERTY = "bootstrap.final.startlevel";   // From Bootstrap
+    public static final int    FINAL_STARTLEVEL_VALUE    = 100;                            // From Bootstrap
+
+    public static final String OUTPUT_TEXT   = "text";
+    public static final String OUTPUT_BINARY = "binary";
+    public static final String OUTPUT_BOTH   = "both";
+
+    public static final String MODE_OFF    = "off";
+    public static final String MODE_EVENTS = "events";
+    public static final String MODE_STACKS = "stacks";
+
     TinyLog log = new TinyLog (new File (System.getProperty ("system.log"), "framework.log"));
 
     private BundleContext fw_context;
     private FrameworkStartLevel fw_startlevel;
 
+    private boolean text_output = true;
+    private EventRecorder recorder;
+    private volatile BootProfiler profiler;
+
+    private String service_mode;
+    private int service_sample;
+    private int service_frames;
+    private double service_rate;
+    private double service_burst;
+    private AtomicLong service_counter = new AtomicLong ();
+    private Map<Long, TokenBucket> service_buckets = new ConcurrentHashMap<> ();
+
     private Tracer (BundleContext fw_context)
     {
         this.fw_context = fw_context;
         this.fw_startlevel = fw_context.getBundle ().adapt (FrameworkStartLevel.class);
+
+        String mode = fw_context.getProperty (SERVICE_MODE_PROPERTY);
+        service_mode = (mode == null)? MODE_STACKS: mode.trim ().toLowerCase ();
+        service_sample = Math.max (1, (int)get_number (SERVICE_SAMPLE_PROPERTY, 1));
+        service_frames = Math.max (1, (int)get_number (SERVICE_FRAMES_PROPERTY, 64));
+        service_rate = Math.max (0, get_number (SERVICE_RATE_PROPERTY, 0));
+        service_burst = Math.max (1, get_number (SERVICE_BURST_PROPERTY, Math.max (1, service_rate)));
+
+        String output = fw_context.getProperty (OUTPUT_PROPERTY);
+        output = (output == null)? OUTPUT_TEXT: output.trim ().toLowerCase ();
+
+        if (OUTPUT_BINARY.equals (output) || OUTPUT_BOTH.equals (output))
+        {
+            String recorder_file = fw_context.getProperty (RECORDER_FILE_PROPERTY);
+            File file = (recorder_file != null)?
+                new File (recorder_file): new File (System.getProperty ("system.log"), "framework.rec");
+
+            try
+            {
+                double records = Math.max (16, get_number (RECORDER_RECORDS_PROPERTY, 65536));
+                recorder = EventRecorder.open (file, (int)Math.min (records, EventRecorder.MAX_RECORDS));
+                text_output = OUTPUT_BOTH.equals (output);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // Keep tracing with text output
+                log.error ("Exception opening event recorder {}", file, e);
+            }
+        }
+
+        String profile = fw_context.getProperty (PROFILE_PROPERTY);
+
+        if (profile == null || Boolean.parseBoolean (profile.trim ()))
+        {
+            profiler = new BootProfiler ((int)get_number (FINAL_STARTLEVEL_PROPERTY, FINAL_STARTLEVEL_VALUE));
+        }
+    }
+
+    private double get_number (String property, double default_value)
+    {
+        String value = fw_context.getProperty (property);
+
+        try
+        {
+            return ((value == null)? default_value: Double.parseDouble (value.trim ()));
+        }
+        catch (NumberFormatException ignore)
+        {
+            return (default_value);
+        }
     }
 
     public static Tracer start (BundleContext fw_context)
@@ -45,6 +142,17 @@ public class Tracer implements FrameworkListener, SynchronousBundleListener, Ser
         return (tracer);
     }
 
+    // Marks the end of a boot phase on the boot profile
+    public void phase (String name)
+    {
+        BootProfiler boot_profiler = profiler;
+
+        if (boot_profiler != null)
+        {
+            boot_profiler.phase (name);
+        }
+    }
+
     private String get_state_string (int state)
     {
         switch (state)
@@ -59,7 +167,7 @@ public class Tracer implements FrameworkListener, SynchronousBundleListener, Ser
         return ("Bundle:UnknownState[" + state + "]");
     }
 
-    private String get_event_string (int type)
+    static String get_event_string (int type)
     {
         switch (type)
         {
@@ -82,11 +190,35 @@ public class Tracer implements FrameworkListener, SynchronousBundleListener, Ser
     {
         Bundle bnd = bundleEvent.getBundle ();
         long bnd_id = bnd.getBundleId ();
+
+        if (bundleEvent.getType () == BundleEvent.UNINSTALLED)
+        {
+            service_buckets.remove (bnd_id);
+        }
+
+        BundleStartLevel bsl = bnd.adapt (BundleStartLevel.class);
+        int bundle_start_level = bsl.getStartLevel ();
+
+        if (recorder != null)
+        {
+            recorder.record (EventRecorder.KIND_BUNDLE, bundleEvent.getType (), bnd_id, bundle_start_level);
+        }
+
+        BootProfiler boot_profiler = profiler;
+
+        if (boot_profiler != null)
+        {
+            boot_profiler.bundleEvent (bnd, bundleEvent.getType (), bundle_start_level);
+        }
+
+        if (!text_output)
+        {
+            return;
+        }
+
         String bundle = "[" + bnd_id + "] " + bnd.getSymbolicName();
         String event = get_event_string (bundleEvent.getType ());
         String state = get_state_string (bnd.getState ());
-        BundleStartLevel bsl = bnd.adapt (BundleStartLevel.class);
-        int bundle_start_level = bsl.getStartLevel ();
         int start_level = fw_startlevel.getStartLevel ();
         String flickering =
             (bundle_start_level != start_level && start_level != 0 && bundle_start_level != 0)? "-- FLICK --": "";
@@ -94,7 +226,7 @@ public class Tracer implements FrameworkListener, SynchronousBundleListener, Ser
         log.info ("{} <{}> state={} {}:{} {}", bundle, event, state, bundle_start_level, start_level, flickering);
     }
 
-    private String get_fw_event_string (int type)
+    static String get_fw_event_string (int type)
     {
         switch (type)
         {
@@ -117,6 +249,39 @@ public class Tracer implements FrameworkListener, SynchronousBundleListener, Ser
     {
         Bundle bnd = frameworkEvent.getBundle ();
         long bnd_id = bnd.getBundleId ();
+
+        if (recorder != null)
+        {
+            recorder.record (EventRecorder.KIND_FRAMEWORK, frameworkEvent.getType (), bnd_id, fw_startlevel.getStartLevel ());
+
+            if (frameworkEvent.getType () == FrameworkEvent.STOPPED)
+            {
+                // Make sure everything reaches the disk
+                recorder.flush ();
+            }
+        }
+
+        BootProfiler boot_profiler = profiler;
+
+        if (boot_profiler != null
+            && (frameworkEvent.getType () == FrameworkEvent.STARTED
+                || frameworkEvent.getType () == FrameworkEvent.STARTLEVEL_CHANGED))
+        {
+            String report = boot_profiler.startLevelChanged (fw_startlevel.getStartLevel ());
+
+            if (report != null)
+            {
+                // The profile is done, no need to keep tracking bundles
+                profiler = null;
+                log.info ("{}", report);
+            }
+        }
+
+        if (!text_output)
+        {
+            return;
+        }
+
         String bundle = (bnd_id == 0)? "": bnd.toString();
         Throwable th = frameworkEvent.getThrowable ();
         String type = get_fw_event_string (frameworkEvent.getType ());
@@ -127,7 +292,7 @@ public class Tracer implements FrameworkListener, SynchronousBundleListener, Ser
             bundle, type, start_level, initial_start_level, (th == null)? "": th);
     }
 
-    private String get_svc_event_string (int type)
+    static String get_svc_event_string (int type)
     {
         switch (type)
         {
@@ -139,11 +304,9 @@ public class Tracer implements FrameworkListener, SynchronousBundleListener, Ser
         return ("ServiceEvent:UnknownType[" + type + "]");
     }
 
-    private String get_location ()
+    private String get_location (StackTraceElement[] stackTrace)
     {
-        final StackTraceElement[] stackTrace = new Throwable ().getStackTrace ();
-
-        for (int i = 2 /* skip this+serviceChanged */; i < stackTrace.length; i++)
+        for (int i = 1 /* skip serviceChanged */; i < stackTrace.length; i++)
         {
             StackTraceElement ste = stackTrace [i];
             String class_name = ste.getClassName ();
@@ -157,32 +320,111 @@ public class Tracer implements FrameworkListener, SynchronousBundleListener, Ser
         return ("StackTraceElement:Unknown");
     }
 
-    private void log_call_stack (String place)
+    private void log_call_stack (String place, StackTraceElement[] stackTrace)
     {
-        final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+        StringBuilder sb = new StringBuilder ();
+        int top = Math.min (stackTrace.length - 1, service_frames);
+
+        sb.append (place).append (" <STACKTRACE>");
+
+        if (top < stackTrace.length - 1)
+        {
+            sb.append (" (").append (stackTrace.length - 1 - top).append (" outer frames omitted)");
+        }
 
         // TODO: THIS SHOULD BE TRACE LEVEL
-        for (int i = stackTrace.length - 1; i > 0; i--)
+        for (int i = top; i > 0; i--)
         {
-            log.info ("{} <STACKTRACE>\t{}", place, stackTrace [i].toString());
+            sb.append ("\n\t").append (stackTrace [i].toString ());
         }
+        log.info ("{}", sb);
     }
 
     @Override // ServiceListener
     public void serviceChanged(ServiceEvent serviceEvent)
     {
         ServiceReference sr = serviceEvent.getServiceReference ();
-        String type = get_svc_event_string (serviceEvent.getType ());
         Bundle bnd = sr.getBundle ();
         long bnd_id = bnd.getBundleId ();
+        long suppressed = 0;
+
+        if (recorder != null)
+        {
+            recorder.record (EventRecorder.KIND_SERVICE, serviceEvent.getType (), bnd_id, fw_startlevel.getStartLevel ());
+        }
+
+        if (!text_output || MODE_OFF.equals (service_mode))
+        {
+            return;
+        }
+
+        if (service_rate > 0)
+        {
+            TokenBucket bucket = service_buckets.computeIfAbsent (bnd_id, id -> new TokenBucket (service_rate, service_burst));
+
+            if ((suppressed = bucket.acquire ()) == -1)
+            {
+                return;
+            }
+        }
+
+        String type = get_svc_event_string (serviceEvent.getType ());
         String bundle = "[" + bnd_id + "] " + bnd.getSymbolicName();
-        String source = get_location ();        // TODO: THIS PROBABLY SHOULD BE DEBUG LEVEL
         Bundle[] using_bundles = sr.getUsingBundles ();
+        String dropped = (suppressed == 0)? "": "(" + suppressed + " events suppressed) ";
 
-        log.info ("{} <{}> {} from {} {}",
-            bundle, type, sr.toString(), source, (using_bundles == null)? "": using_bundles);
-        log_call_stack (bundle);
+        if (MODE_STACKS.equals (service_mode)
+            && service_counter.getAndIncrement () % service_sample == 0)
+        {
+            // One single capture serves both the location and the call stack
+            StackTraceElement[] stackTrace = new Throwable ().getStackTrace ();
+            String source = get_location (stackTrace);        // TODO: THIS PROBABLY SHOULD BE DEBUG LEVEL
 
+            log.info ("{} <{}> {} from {} {}{}",
+                bundle, type, sr.toString(), source, dropped, (using_bundles == null)? "": using_bundles);
+            log_call_stack (bundle, stackTrace);
+        }
+        else
+        {
+            log.info ("{} <{}> {} {}{}",
+                bundle, type, sr.toString(), dropped, (using_bundles == null)? "": using_bundles);
+        }
+    }
+
+    private static class TokenBucket
+    {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long last_refill = System.nanoTime ();
+        private long suppressed = 0;
+
+        TokenBucket (double rate, double burst)
+        {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        // Returns -1 if the event should be dropped, otherwise
+        // the number of events dropped since the last one allowed
+        synchronized long acquire ()
+        {
+            long now = System.nanoTime ();
+            tokens = Math.min (burst, tokens + (now - last_refill) * rate / 1e9);
+            last_refill = now;
+
+            if (tokens < 1)
+            {
+                suppressed++;
+                return (-1);
+            }
+
+            tokens -= 1;
+            long dropped = suppressed;
+            suppressed = 0;
+            return (dropped);
+        }
     }
 
 /*
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel;
+
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+// Training run, used to build the class data sharing archive: the kernel
+// boots as usual and, once the framework reaches bootstrap.final.startlevel,
+// the time taken since the JVM start is reported and the framework stops.
+// Every class the kernel needs to come up is loaded by then, which is what
+// -XX:DumpLoadedClassList records. The report line is also appended to the
+// file given by lucidj.training.run.report, since stdout goes to the log,
+// and bin/felix parses it to show the startup win of the archive:
+//
+//    Training run: startlevel=100 uptime_ms=1234 sharing=on
+//
+// Enabled with -Dlucidj.training.run=true. If the final start level is never
+// reached (no bootstrap bundle, for instance), the run ends after a timeout.
+//
+// A training run never touches the stage cache. It refuses to run when the
+// cache is locked by a running framework, reporting "busy", and otherwise
+// boots from a scratch copy of the cache which is removed on exit. The time
+// taken by the copy is left out of uptime_ms.
+public class TrainingRun implements FrameworkListener
+{
+    public static final String TRAINING_PROPERTY         = "lucidj.training.run";
+    public static final String TRAINING_TIMEOUT_PROPERTY = "lucidj.training.run.timeout";
+    public static final long   TRAINING_TIMEOUT_VALUE    = 300000;
+    public static final String TRAINING_REPORT_PROPERTY  = "lucidj.training.run.report";
+
+    private final static String CACHE_LOCK = "cache.lock";
+
+    private static long prepare_ms;
+    private static volatile Framework scratch_framework;
+
+    private final Framework framework;
+    private final int final_startlevel;
+    private final AtomicBoolean finished = new AtomicBoolean ();
+
+    private TrainingRun (Framework framework, int final_startlevel)
+    {
+        this.framework = framework;
+        this.final_startlevel = final_startlevel;
+    }
+
+    public static boolean isEnabled ()
+    {
+        return (Boolean.getBoolean (TRAINING_PROPERTY));
+    }
+
+    private static long get_long (String value, long default_value)
+    {
+        try
+        {
+            return ((value == null)? default_value: Long.parseLong (value.trim ()));
+        }
+        catch (NumberFormatException ignore)
+        {
+            return (default_value);
+        }
+    }
+
+    private static void report (String report)
+    {
+        String report_file = System.getProperty (TRAINING_REPORT_PROPERTY);
+
+        System.out.println (report);
+
+        if (report_file != null)
+        {
+            try
+            {
+                Files.write (Paths.get (report_file), (report + "\n").getBytes (StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            catch (IOException e)
+            {
+                System.err.println ("WARNING: Unable to write training report: " + e.toString ());
+            }
+        }
+    }
+
+    // True if a framework holds the lock of the cache, as Felix takes it
+    private static boolean is_locked (File lock_file)
+    {
+        if (!lock_file.exists ())
+        {
+            return (false);
+        }
+
+        try (FileChannel channel = FileChannel.open (lock_file.toPath (), StandardOpenOption.WRITE))
+        {
+            FileLock lock = channel.tryLock ();
+
+            if (lock == null)
+            {
+                return (true);
+            }
+            lock.release ();
+            return (false);
+        }
+        catch (OverlappingFileLockException e)
+        {
+            return (true);
+        }
+        catch (IOException e)
+        {
+            System.err.println ("WARNING: Unable to check " + lock_file + ": " + e.toString ());
+            return (false);
+        }
+    }
+
+    private static void copy_tree (final Path source, final Path target)
+        throws IOException
+    {
+        Files.walkFileTree (source, new SimpleFileVisitor<Path> ()
+        {
+            @Override // SimpleFileVisitor
+            public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs)
+                throws IOException
+            {
+                Files.createDirectories (target.resolve (source.relativize (dir)));
+                return (FileVisitResult.CONTINUE);
+            }
+
+            @Override // SimpleFileVisitor
+            public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+                throws IOException
+            {
+                // The lock belongs to the running framework
+                if (!file.getFileName ().toString ().equals (CACHE_LOCK))
+                {
+                    Files.copy (file, target.resolve (source.relativize (file)));
+                }
+                return (FileVisitResult.CONTINUE);
+            }
+        });
+    }
+
+    private static void delete_tree (Path root)
+    {
+        try (Stream<Path> paths = Files.walk (root))
+        {
+            paths.sorted (Comparator.reverseOrder ()).forEach (path ->
+            {
+                try
+                {
+                    Files.delete (path);
+                }
+                catch (IOException ignore) {};
+            });
+        }
+        catch (IOException ignore) {};
+    }
+
+    // Points the framework storage to a scratch copy of the stage cache,
+    // or leaves right away if the stage is running
+    public static void prepare (File cache_dir, Map<String, String> configProps)
+    {
+        long start = System.currentTimeMillis ();
+
+        if (is_locked (new File (cache_dir, CACHE_LOCK)))
+        {
+            report ("Training run: busy cache=" + cache_dir);
+            System.exit (2);
+        }
+
+        try
+        {
+            final Path scratch_dir = Files.createTempDirectory ("lucidj-training-");
+            Path scratch_cache = scratch_dir.resolve ("felix-cache");
+
+            Runtime.getRuntime ().addShutdownHook (new Thread (() ->
+            {
+                Framework framework = scratch_framework;
+
+                try
+                {
+                    // Hooks run together, let the Felix hook stop it first
+                    if (framework != null)
+                    {
+                        framework.waitForStop (10000);
+                    }
+                }
+                catch (InterruptedException ignore) {};
+                delete_tree (scratch_dir);
+            }, "Training run cleanup"));
+
+            if (cache_dir.isDirectory ())
+            {
+                copy_tree (cache_dir.toPath (), scratch_cache);
+            }
+            configProps.put (Constants.FRAMEWORK_STORAGE, scratch_cache.toString ());
+        }
+        catch (IOException e)
+        {
+            report ("Training run: failed scratch cache " + e.toString ());
+            System.exit (1);
+        }
+        prepare_ms = System.currentTimeMillis () - start;
+    }
+
+    public static void start (Framework framework)
+    {
+        String final_prop = framework.getBundleContext ().getProperty (Tracer.FINAL_STARTLEVEL_PROPERTY);
+        int final_startlevel = (int)get_long (final_prop, Tracer.FINAL_STARTLEVEL_VALUE);
+        long timeout_ms = get_long (System.getProperty (TRAINING_TIMEOUT_PROPERTY), TRAINING_TIMEOUT_VALUE);
+        final TrainingRun training_run = new TrainingRun (framework, final_startlevel);
+
+        scratch_framework = framework;
+
+        framework.getBundleContext ().addFrameworkListener (training_run);
+
+        Thread timeout_thread = new Thread (() ->
+        {
+            try
+            {
+                Thread.sleep (timeout_ms);
+                System.err.println ("WARNING: Training run timed out before start level " + final_startlevel);
+                training_run.finish ();
+            }
+            catch (InterruptedException ignore) {};
+        }, "Training run timeout");
+        timeout_thread.setDaemon (true);
+        timeout_thread.start ();
+    }
+
+    private void finish ()
+    {
+        if (!finished.compareAndSet (false, true))
+        {
+            return;
+        }
+
+        long uptime_ms = ManagementFactory.getRuntimeMXBean ().getUptime () - prepare_ms;
+        int startlevel = framework.adapt (FrameworkStartLevel.class).getStartLevel ();
+        String vm_info = System.getProperty ("java.vm.info", "");
+
+        report ("Training run: startlevel=" + startlevel + " uptime_ms=" + uptime_ms
+            + " sharing=" + (vm_info.contains ("sharing")? "on": "off"));
+
+        // Never stop the framework from inside its own event dispatching
+        Thread stop_thread = new Thread (() ->
+        {
+            try
+            {
+                framework.stop ();
+            }
+            catch (BundleException e)
+            {
+                System.err.println ("ERROR: Unable to stop training run: " + e.toString ());
+            }
+        }, "Training run stop");
+        stop_thread.start ();
+    }
+
+    @Override // FrameworkListener
+    public void frameworkEvent (FrameworkEvent frameworkEvent)
+    {
+        switch (frameworkEvent.getType ())
+        {
+            case FrameworkEvent.STARTED:
+            case FrameworkEvent.STARTLEVEL_CHANGED:
+            {
+                if (framework.adapt (FrameworkStartLevel.class).getStartLevel () >= final_startlevel)
+                {
+                    finish ();
+                }
+                break;
+            }
+        }
+    }
+}
+
+// EOF
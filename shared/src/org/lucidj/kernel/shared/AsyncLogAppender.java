@@ -0,0 +1,508 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.kernel.shared;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous log file writer used by TinyLog when tinylog.async=true.
+//
+// Callers only copy the event fields into a pre-allocated slot of a lock-free
+// ring buffer (bounded MPMC queue with per-slot sequence numbers). A single
+// writer thread per log file drains the ring, formats the events into a direct
+// ByteBuffer and issues one FileChannel write per batch.
+//
+// When the ring is full, tinylog.async.policy decides what to do:
+//
+//    block            - wait for the writer to free a slot (default)
+//    drop-oldest      - discard the oldest queued event
+//    drop-below-level - discard the event if it is less severe than
+//                       tinylog.async.policy.level (default WARN), else block
+//
+// Dropped events are accounted and reported into the log file itself. All
+// queued events are written by a shutdown hook, and anything logged after
+// that is written synchronously.
+//
+public class AsyncLogAppender implements Runnable
+{
+    public final static String ASYNC_PROPERTY        = "tinylog.async";
+    public final static String BUFFER_SIZE_PROPERTY  = "tinylog.async.buffer";
+    public final static String POLICY_PROPERTY       = "tinylog.async.policy";
+    public final static String POLICY_LEVEL_PROPERTY = "tinylog.async.policy.level";
+
+    public final static String POLICY_BLOCK            = "block";
+    public final static String POLICY_DROP_OLDEST      = "drop-oldest";
+    public final static String POLICY_DROP_BELOW_LEVEL = "drop-below-level";
+
+    private final static int  DEFAULT_BUFFER_SIZE = 4096;               // Event slots
+    private final static int  BATCH_BUFFER_SIZE   = 64 * 1024;          // Bytes per FileChannel write
+    private final static long IDLE_PARK_NANOS     = 50 * 1000 * 1000;   // 50ms
+    private final static long BLOCK_PARK_NANOS    = 100 * 1000;         // 100us
+    private final static long SHUTDOWN_TIMEOUT    = 5000;               // 5 seconds
+
+    private final static Map<String, AsyncLogAppender> appenders = new ConcurrentHashMap<> ();
+
+    private final String log_file;
+    private final boolean timestamp_millis;
+    private final String policy;
+    private final int policy_level;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong ();
+    private final AtomicLong tail = new AtomicLong ();
+    private final AtomicLong dropped = new AtomicLong ();
+
+    private final Thread writer_thread;
+    private volatile boolean writer_idle = false;
+    private volatile boolean running = true;
+    private volatile boolean closed = false;
+
+    // Used only by the writer, or while holding the appender lock
+    private final SimpleDateFormat timestamp_format = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss");
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder ()
+        .onMalformedInput (CodingErrorAction.REPLACE)
+        .onUnmappableCharacter (CodingErrorAction.REPLACE);
+    private final ByteBuffer byte_buffer = ByteBuffer.allocateDirect (BATCH_BUFFER_SIZE);
+    private final StringBuilder line = new StringBuilder (256);
+    private char[] line_chars = new char [256];
+    private long cached_second = -1;
+    private String cached_timestamp;
+    private FileChannel channel;
+
+    private AsyncLogAppender (String log_file, boolean timestamp_millis)
+    {
+        this.log_file = log_file;
+        this.timestamp_millis = timestamp_millis;
+        this.policy = System.getProperty (POLICY_PROPERTY, POLICY_BLOCK).toLowerCase ();
+        this.policy_level = get_level (System.getProperty (POLICY_LEVEL_PROPERTY), 2 /* WARN */);
+
+        // Round the slot count up to a power of 2, so we can mask the sequences
+        int size = Integer.highestOneBit (Math.max (2, get_int (System.getProperty (BUFFER_SIZE_PROPERTY),
+                                                                DEFAULT_BUFFER_SIZE)) * 2 - 1);
+        slots = new Slot [size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++)
+        {
+            slots [i] = new Slot (i);
+        }
+
+        writer_thread = new Thread (this, "TinyLog writer " + new File (log_file).getName ());
+        writer_thread.setDaemon (true);
+        writer_thread.start ();
+
+        Runtime.getRuntime ().addShutdownHook (new Thread ("TinyLog flush " + new File (log_file).getName ())
+        {
+            public void run ()
+            {
+                close ();
+            }
+        });
+    }
+
+    public static boolean isEnabled ()
+    {
+        String async_env_default = System.getenv ("TINYLOG_ASYNC");
+        return (Boolean.parseBoolean (System.getProperty (ASYNC_PROPERTY, async_env_default)));
+    }
+
+    public static AsyncLogAppender getAppender (String log_file, boolean timestamp_millis)
+    {
+        // All TinyLog instances writing on the same file share the same writer
+        return (appenders.computeIfAbsent (new File (log_file).getAbsolutePath (),
+                                           path -> new AsyncLogAppender (path, timestamp_millis)));
+    }
+
+    private static int get_int (String probable_int, int default_value)
+    {
+        try
+        {
+            return ((probable_int == null)? default_value: Integer.parseInt (probable_int.trim ()));
+        }
+        catch (NumberFormatException ignore)
+        {
+            return (default_value);
+        }
+    }
+
+    private static int get_level (String level_name, int default_level)
+    {
+        for (int level = 0; level_name != null && level < TinyLog.LOG_LEVELS.length; level++)
+        {
+            if (TinyLog.LOG_LEVELS [level].equalsIgnoreCase (level_name.trim ()))
+            {
+                return (level);
+            }
+        }
+        return (default_level);
+    }
+
+    public long getDroppedCount ()
+    {
+        return (dropped.get ());
+    }
+
+    public void append (long timestamp, int level, String logger, Object service_ref, String message, Throwable throwable)
+    {
+        if (closed)
+        {
+            write_sync (timestamp, level, logger, service_ref, message, throwable);
+            return;
+        }
+
+        while (!offer (timestamp, level, logger, service_ref, message, throwable))
+        {
+            if (POLICY_DROP_OLDEST.equals (policy))
+            {
+                discard_oldest ();
+            }
+            else if (POLICY_DROP_BELOW_LEVEL.equals (policy) && level > policy_level)
+            {
+                dropped.incrementAndGet ();
+                return;
+            }
+            else // POLICY_BLOCK
+            {
+                LockSupport.unpark (writer_thread);
+                LockSupport.parkNanos (this, BLOCK_PARK_NANOS);
+
+                if (closed)
+                {
+                    write_sync (timestamp, level, logger, service_ref, message, throwable);
+                    return;
+                }
+            }
+        }
+
+        if (closed)
+        {
+            // Closed since we checked, its final drain may have come before our event
+            drain ();
+        }
+        else if (writer_idle)
+        {
+            LockSupport.unpark (writer_thread);
+        }
+    }
+
+    private boolean offer (long timestamp, int level, String logger, Object service_ref, String message, Throwable throwable)
+    {
+        for (;;)
+        {
+            long pos = tail.get ();
+            Slot slot = slots [(int)(pos & mask)];
+            long dif = slot.sequence.get () - pos;
+
+            if (dif == 0)
+            {
+                if (tail.compareAndSet (pos, pos + 1))
+                {
+                    slot.timestamp = timestamp;
+                    slot.level = level;
+                    slot.logger = logger;
+                    slot.service_ref = service_ref;
+                    slot.message = message;
+                    slot.throwable = throwable;
+                    slot.sequence.set (pos + 1);        // Publish
+                    return (true);
+                }
+            }
+            else if (dif < 0)
+            {
+                return (false);                         // Full
+            }
+            // Some other thread got this slot, try again
+        }
+    }
+
+    private long claim ()
+    {
+        for (;;)
+        {
+            long pos = head.get ();
+            Slot slot = slots [(int)(pos & mask)];
+            long dif = slot.sequence.get () - (pos + 1);
+
+            if (dif == 0)
+            {
+                if (head.compareAndSet (pos, pos + 1))
+                {
+                    return (pos);
+                }
+            }
+            else if (dif < 0)
+            {
+                return (-1);                            // Empty
+            }
+        }
+    }
+
+    private void release (long pos)
+    {
+        Slot slot = slots [(int)(pos & mask)];
+        slot.logger = null;
+        slot.service_ref = null;
+        slot.message = null;
+        slot.throwable = null;
+        slot.sequence.set (pos + slots.length);         // Free for the next lap
+    }
+
+    private void discard_oldest ()
+    {
+        long pos = claim ();
+
+        if (pos != -1)
+        {
+            release (pos);
+            dropped.incrementAndGet ();
+        }
+    }
+
+    private boolean is_empty ()
+    {
+        return (head.get () == tail.get ());
+    }
+
+    @Override // Runnable
+    public void run ()
+    {
+        while (running)
+        {
+            if (!drain ())
+            {
+                writer_idle = true;
+
+                // Check again, we may have lost an unpark
+                if (running && is_empty ())
+                {
+                    LockSupport.parkNanos (this, IDLE_PARK_NANOS);
+                }
+                writer_idle = false;
+            }
+        }
+        drain ();
+    }
+
+    private synchronized boolean drain ()
+    {
+        boolean wrote = false;
+
+        for (long pos; (pos = claim ()) != -1; wrote = true)
+        {
+            Slot slot = slots [(int)(pos & mask)];
+            format_line (slot.timestamp, slot.level, slot.logger, slot.service_ref, slot.message, slot.throwable);
+            release (pos);
+            encode_line ();
+        }
+
+        long lost = dropped.getAndSet (0);
+
+        if (lost > 0)
+        {
+            format_line (System.currentTimeMillis (), 2 /* WARN */, "TinyLog", null,
+                         lost + " log events dropped by " + policy + " policy", null);
+            encode_line ();
+            wrote = true;
+        }
+
+        if (wrote)
+        {
+            flush_buffer ();
+        }
+        return (wrote);
+    }
+
+    private synchronized void write_sync (long timestamp, int level, String logger,
+                                          Object service_ref, String message, Throwable throwable)
+    {
+        // Keep ordering: whatever is still queued goes first
+        drain ();
+        format_line (timestamp, level, logger, service_ref, message, throwable);
+        encode_line ();
+        flush_buffer ();
+    }
+
+    private void append_timestamp (long timestamp)
+    {
+        long second = timestamp / 1000;
+
+        if (second != cached_second)
+        {
+            cached_timestamp = timestamp_format.format (new Date (second * 1000));
+            cached_second = second;
+        }
+        line.append (cached_timestamp);
+
+        if (timestamp_millis)
+        {
+            int millis = (int)(timestamp % 1000);
+            line.append ('.');
+            line.append ((char)('0' + millis / 100));
+            line.append ((char)('0' + millis / 10 % 10));
+            line.append ((char)('0' + millis % 10));
+        }
+        line.append (' ');
+    }
+
+    private void format_line (long timestamp, int level, String logger,
+                              Object service_ref, String message, Throwable throwable)
+    {
+        // Same layout as TinyLog.BuiltinLogService
+        line.setLength (0);
+        append_timestamp (timestamp);
+        line.append (TinyLog.LOG_LEVELS [level]).append ("  ");
+
+        if (logger != null)
+        {
+            line.append ('[').append (logger).append ("] ");
+        }
+
+        if (service_ref != null)
+        {
+            line.append (service_ref).append (": ");
+        }
+        line.append (message);
+
+        if (throwable != null)
+        {
+            line.append (" - ").append (throwable);
+        }
+        line.append ('\n');
+    }
+
+    private void encode_line ()
+    {
+        int length = line.length ();
+
+        if (line_chars.length < length)
+        {
+            line_chars = new char [Integer.highestOneBit (length) * 2];
+        }
+        line.getChars (0, length, line_chars, 0);
+
+        CharBuffer chars = CharBuffer.wrap (line_chars, 0, length);
+        encoder.reset ();
+
+        while (encoder.encode (chars, byte_buffer, true) == CoderResult.OVERFLOW)
+        {
+            flush_buffer ();
+        }
+
+        while (encoder.flush (byte_buffer) == CoderResult.OVERFLOW)
+        {
+            flush_buffer ();
+        }
+    }
+
+    private void flush_buffer ()
+    {
+        byte_buffer.flip ();
+
+        try
+        {
+            if (channel == null)
+            {
+                channel = FileChannel.open (new File (log_file).toPath (), StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+
+            while (byte_buffer.hasRemaining ())
+            {
+                channel.write (byte_buffer);
+            }
+        }
+        catch (IOException e)
+        {
+            // TODO: LOG TO QUARANTINE
+
+            if (channel != null)
+            {
+                try
+                {
+                    channel.close ();
+                }
+                catch (IOException close_silently) {};
+
+                channel = null;
+            }
+        }
+        finally
+        {
+            byte_buffer.clear ();
+        }
+    }
+
+    public void flush ()
+    {
+        drain ();
+    }
+
+    public void close ()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        // From now on every event is written synchronously
+        closed = true;
+        running = false;
+        LockSupport.unpark (writer_thread);
+
+        try
+        {
+            writer_thread.join (SHUTDOWN_TIMEOUT);
+        }
+        catch (InterruptedException ignore) {};
+
+        // Catch anything queued while the writer was going down
+        drain ();
+    }
+
+    private final static class Slot
+    {
+        final AtomicLong sequence;
+        long timestamp;
+        int level;
+        String logger;
+        Object service_ref;
+        String message;
+        Throwable throwable;
+
+        Slot (long sequence)
+        {
+            this.sequence = new AtomicLong (sequence);
+        }
+    }
+}
+
+// EOF
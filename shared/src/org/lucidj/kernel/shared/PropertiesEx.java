@@ -16,10 +16,20 @@
 
 package org.lucidj.kernel.shared;
 
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Properties with ${name} substitution on getProperty(). Variables are looked
+// up on these properties (and defaults) first, then on the system properties.
+// Unknown variables and cycles are left untouched, and values that depend
+// only on these properties are memoized until the properties change.
 public class PropertiesEx extends Properties
 {
+    private transient Map<String, String> resolved_cache = new ConcurrentHashMap<> ();
+
     public PropertiesEx ()
     {
         super ();
@@ -30,31 +40,122 @@ public class PropertiesEx extends Properties
         super (defaults);
     }
 
+    private void invalidate ()
+    {
+        // May be called by the super constructor, before our fields are set
+        if (resolved_cache != null)
+        {
+            resolved_cache.clear ();
+        }
+    }
+
+    @Override // Hashtable
+    public synchronized Object put (Object key, Object value)
+    {
+        invalidate ();
+        return (super.put (key, value));
+    }
+
+    @Override // Hashtable
+    public synchronized void putAll (Map<?, ?> map)
+    {
+        invalidate ();
+        super.putAll (map);
+    }
+
+    @Override // Hashtable
+    public synchronized Object remove (Object key)
+    {
+        invalidate ();
+        return (super.remove (key));
+    }
+
+    @Override // Hashtable
+    public synchronized void clear ()
+    {
+        invalidate ();
+        super.clear ();
+    }
+
     public String getProperty (String key)
     {
-        final int max_depth = 5;
-        String value = super.getProperty (key);
+        String value = resolved_cache.get (key);
 
         if (value != null)
         {
-            for (int i = 0; value.contains ("${") && i < max_depth; i++)
+            return (value);
+        }
+
+        if ((value = super.getProperty (key)) == null)
+        {
+            return (null);
+        }
+
+        Set<String> resolving = new HashSet<> ();
+        boolean[] uses_system = new boolean [1];
+
+        resolving.add (key);
+        value = resolve (value, resolving, uses_system);
+
+        // System properties may change anytime, so those values are not kept
+        if (!uses_system [0])
+        {
+            resolved_cache.put (key, value);
+        }
+        return (value);
+    }
+
+    // Replaces every ${name} on a single scan, resolving the variables recursively
+    private String resolve (String value, Set<String> resolving, boolean[] uses_system)
+    {
+        int start = value.indexOf ("${");
+
+        if (start == -1)
+        {
+            return (value);
+        }
+
+        StringBuilder sb = new StringBuilder (value.length () + 64);
+        int pos = 0;
+
+        while (start != -1)
+        {
+            int end = value.indexOf ('}', start + 2);
+
+            if (end == -1)
             {
-                // Very expensive, but will be done with limited amount of data
-                // and probably no one will see this... In the future aliens will
-                // think this was intended to run on a quantum computer :)
-                for (String prop_key: stringPropertyNames ())
-                {
-                    value = value.replace ("${" + prop_key + "}", super.getProperty (prop_key));
-                }
+                break;
+            }
+
+            String name = value.substring (start + 2, end);
+            String var_value = super.getProperty (name);
 
+            if (var_value == null)
+            {
                 // System properties are included but have less precedence
-                for (String prop_key: System.getProperties ().stringPropertyNames ())
-                {
-                    value = value.replace ("${" + prop_key + "}", System.getProperty (prop_key));
-                }
+                var_value = System.getProperty (name);
+                uses_system [0] = true;
+            }
+
+            sb.append (value, pos, start);
+
+            if (var_value == null || !resolving.add (name))
+            {
+                // Unknown variable or cycle, leave it as is
+                sb.append (value, start, end + 1);
+            }
+            else
+            {
+                sb.append (resolve (var_value, resolving, uses_system));
+                resolving.remove (name);
             }
+
+            pos = end + 1;
+            start = value.indexOf ("${", pos);
         }
-        return (value);
+
+        sb.append (value, pos, value.length ());
+        return (sb.toString ());
     }
 }
 
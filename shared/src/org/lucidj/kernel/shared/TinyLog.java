@@ -35,22 +35,31 @@ public class TinyLog
         "OFF", "ERROR", "WARN", "INFO", "DEBUG"
     };
 
+    private final static int MAX_FORMAT_BUFFER = 8192;
+
+    // Every thread reuses its own buffer to format the messages
+    private final static ThreadLocal<StringBuilder> format_buffer =
+        ThreadLocal.withInitial (() -> new StringBuilder (256));
+
     private LogService log_service = null;
     private LogService log_service_builtin;
     private boolean use_only_builtion_log = false;
     private BundleContext context;
     private String logger_name;
+    private int effective_level;
 
     public TinyLog ()
     {
-        // Tinylog level can be set using environment variable TINYLOG={ OFF|ERROR|WARN|INFO|DEBUG }
-        log_service_builtin = new BuiltinLogService (getConfiguredLogLevel (logger_name));
+        this ((String)null);
     }
 
     public TinyLog (String logger_name)
     {
-        this ();
+        // Tinylog level can be set using environment variable TINYLOG={ OFF|ERROR|WARN|INFO|DEBUG }
+        // or for a single logger using the system property tinylog_<logger_name>
         this.logger_name = logger_name;
+        this.effective_level = getConfiguredLogLevel (logger_name);
+        log_service_builtin = new BuiltinLogService (effective_level);
     }
 
     public TinyLog (Class logger_clazz)
@@ -61,8 +70,8 @@ public class TinyLog
     public TinyLog (File log_file)
     {
         // Log to a specific file
-        log_service_builtin = new BuiltinLogService (getConfiguredLogLevel (logger_name),
-                                                     log_file.getAbsolutePath());
+        effective_level = getConfiguredLogLevel (logger_name);
+        log_service_builtin = new BuiltinLogService (effective_level, log_file.getAbsolutePath());
         use_only_builtion_log = true;
     }
 
@@ -88,30 +97,70 @@ public class TinyLog
         return (LogService.LOG_INFO);
     }
 
-    private String conv_str (Object obj)
+    private static void append_obj (StringBuilder sb, Object obj)
     {
-        if (obj == null)
-        {
-            return ("null");
-        }
-        else if (obj instanceof Object[])
+        if (obj instanceof Object[])
         {
             Object[] obj_list = (Object[])obj;
-            String result = "";
+            sb.append ('[');
 
             for (int i = 0; i < obj_list.length; i++)
             {
-                if (!result.isEmpty ())
+                if (i > 0)
                 {
-                    result += ",";
+                    sb.append (',');
                 }
-                result += conv_str (obj_list [i]);
+                append_obj (sb, obj_list [i]);
             }
+            sb.append (']');
+        }
+        else
+        {
+            sb.append (obj);    // Appends "null" for null
+        }
+    }
 
-            return ("[" + result + "]");
+    private static String format_message (String msg, Object... args)
+    {
+        int pos = 0;
+        int next;
+
+        if (args.length == 0 || (next = msg.indexOf ("{}")) == -1)
+        {
+            return (msg);
         }
 
-        return (obj.toString ());
+        StringBuilder sb = format_buffer.get ();
+        sb.setLength (0);
+
+        // Single pass, so arguments containing {} are never expanded
+        for (int i = 0; i < args.length && next != -1; i++, next = msg.indexOf ("{}", pos))
+        {
+            sb.append (msg, pos, next);
+            append_obj (sb, args [i]);
+            pos = next + 2;
+        }
+        sb.append (msg, pos, msg.length ());
+
+        String result = sb.toString ();
+
+        if (sb.capacity () > MAX_FORMAT_BUFFER)
+        {
+            // Don't keep huge buffers around after a huge message
+            format_buffer.remove ();
+        }
+        return (result);
+    }
+
+    public boolean isEnabled (int level)
+    {
+        // A bound LogService applies its own level
+        return (level <= effective_level || get_log_service () != log_service_builtin);
+    }
+
+    public boolean isDebugEnabled ()
+    {
+        return (isEnabled (LogService.LOG_DEBUG));
     }
 
     @SuppressWarnings ("unchecked")
@@ -163,19 +212,25 @@ public class TinyLog
 
     private void write_log (int level, String msg, Object... args)
     {
-        for (int pos, i = 0; i < args.length && (pos = msg.indexOf ("{}")) != -1; i++)
+        LogService service = get_log_service ();
+
+        // Disabled levels on the builtin service cost no formatting at all,
+        // while a bound LogService applies its own level and gets everything
+        if (level > effective_level && service == log_service_builtin)
         {
-            msg = msg.substring (0, pos) + conv_str (args [i]) + msg.substring (pos + 2);
+            return;
         }
 
+        msg = format_message (msg, args);
+
         // Let's assume Throwable is always at the end of the list
         if (args.length > 0 && args [args.length - 1] instanceof Throwable)
         {
-            get_log_service().log (level, msg, (Throwable)args [args.length - 1]);
+            service.log (level, msg, (Throwable)args [args.length - 1]);
         }
         else
         {
-            get_log_service().log (level, msg);
+            service.log (level, msg);
         }
     }
 
@@ -209,16 +264,66 @@ public class TinyLog
         return (new PrintStream (new LoggingOutputStream (parent_stream, log_level)));
     }
 
+    //-----------------------------------------------------------------
+    // Micro benchmark, logs into a scratch file with the builtin service:
+    //
+    //    java -cp <kernel.jar> org.lucidj.kernel.shared.TinyLog [iterations]
+    //
+    // Add -Dtinylog.async=true to measure the async appender.
+    //-----------------------------------------------------------------
+
+    public static void main (String[] args)
+        throws IOException
+    {
+        int iterations = (args.length > 0)? Integer.parseInt (args [0]): 2000000;
+        File log_file = File.createTempFile ("tinylog-bench", ".log");
+        log_file.deleteOnExit ();
+
+        // Logs at INFO, so debug() is the disabled path
+        TinyLog log = new TinyLog (log_file);
+
+        // The first rounds are the warmup
+        for (int round = 1; round <= 5; round++)
+        {
+            long start = System.nanoTime ();
+
+            for (int i = 0; i < iterations; i++)
+            {
+                log.debug ("Disabled message {} of {} on {}", i, iterations, log_file);
+            }
+
+            long disabled_ns = System.nanoTime () - start;
+            int enabled_iterations = iterations / 20;
+            start = System.nanoTime ();
+
+            for (int i = 0; i < enabled_iterations; i++)
+            {
+                log.info ("Enabled message {} of {} on {}", i, enabled_iterations, log_file);
+            }
+
+            long enabled_ns = System.nanoTime () - start;
+            System.out.printf ("round %d: disabled debug %.1f ns/op, enabled info %.1f ns/op%n", round,
+                (double)disabled_ns / iterations, (double)enabled_ns / enabled_iterations);
+        }
+    }
+
     public class BuiltinLogService implements LogService
     {
         private String log_file = System.getProperty ("system.log.file", "system.log");
         private SimpleDateFormat timestamp_format_info = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss ");
         private int log_level;
         private volatile OutputStream log_stream;
+        private AsyncLogAppender async_appender;
 
         public BuiltinLogService (int log_level)
         {
             this.log_level = log_level;
+
+            // Async mode can be set using tinylog.async=true or environment variable TINYLOG_ASYNC=true
+            if (AsyncLogAppender.isEnabled ())
+            {
+                async_appender = AsyncLogAppender.getAppender (log_file, false);
+            }
         }
 
         public BuiltinLogService (int log_level, String log_file)
@@ -226,6 +331,11 @@ public class TinyLog
             this.log_level = log_level;
             this.log_file = log_file;
             this.timestamp_format_info = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss.SSS ");
+
+            if (AsyncLogAppender.isEnabled ())
+            {
+                async_appender = AsyncLogAppender.getAppender (log_file, true);
+            }
         }
 
         @Override // LogService
@@ -247,13 +357,24 @@ public class TinyLog
         }
 
         @Override // LogService
-        public synchronized void log (ServiceReference serviceReference, int i, String s, Throwable throwable)
+        public void log (ServiceReference serviceReference, int i, String s, Throwable throwable)
         {
             if (i > log_level)
             {
                 return;
             }
 
+            if (async_appender != null)
+            {
+                // Formatting and file writing happen on the appender thread
+                async_appender.append (System.currentTimeMillis (), i, logger_name, serviceReference, s, throwable);
+                return;
+            }
+            write_log_stream (serviceReference, i, s, throwable);
+        }
+
+        private synchronized void write_log_stream (ServiceReference<?> serviceReference, int i, String s, Throwable throwable)
+        {
             if (log_stream == null)
             {
                 try
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.telnetd;
+
+import org.apache.felix.gogo.jline.Shell;
+import org.apache.felix.service.command.CommandProcessor;
+import org.apache.felix.service.command.CommandSession;
+import org.jline.terminal.Attributes;
+import org.jline.terminal.Terminal;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Throughput benchmark of the telnet sessions, kept out of the bundle. A
+// standalone Telnetd listens on loopback and runs real GogoConnection
+// sessions, over SessionSocket, TelnetStreams and the session terminal.
+// The context given to Telnetd carries a CommandProcessor which, instead of
+// running a shell, hands the session terminal to the benchmark. A plain
+// socket client then pushes lines each way and checks the byte counts:
+//
+//    java -cp <telnetd classes>:<bench classes>:<libs> org.lucidj.telnetd.TelnetStreamsBenchmark [megabytes]
+//
+// Listens on osgi.shell.telnet.port, 6523 unless set with -D. The first
+// rounds are the warmup.
+public class TelnetStreamsBenchmark
+{
+    private final static int BENCH_LINE  = 80;
+    private final static int BUFFER_SIZE = 8192;
+    private final static int IAC         = 255;
+    private final static int ROUNDS      = 5;
+    private final static int END_MARK    = '.';
+
+    private final int lines;
+
+    private TelnetStreamsBenchmark (int lines)
+    {
+        this.lines = lines;
+    }
+
+    // A proxy answering what the given handler knows, and the Object basics
+    @SuppressWarnings ("unchecked")
+    private static <T> T proxy (Class<T> type, InvocationHandler handler)
+    {
+        return ((T)Proxy.newProxyInstance (type.getClassLoader (), new Class<?>[] { type }, (proxy, method, args) ->
+        {
+            switch (method.getName ())
+            {
+                case "equals":   return (proxy == args [0]);
+                case "hashCode": return (System.identityHashCode (proxy));
+                case "toString": return (type.getSimpleName () + " (benchmark)");
+            }
+            return (handler.invoke (proxy, method, args));
+        }));
+    }
+
+    // Just what Telnetd and GogoConnection ask from the bundle context
+    private BundleContext get_context ()
+    {
+        final Bundle bundle = proxy (Bundle.class, (proxy, method, args) ->
+        {
+            if (method.getName ().equals ("getSymbolicName"))
+            {
+                return ("telnetd-bench");
+            }
+            throw new UnsupportedOperationException (method.getName ());
+        });
+        final ServiceReference<?> cp_ref = proxy (ServiceReference.class, (proxy, method, args) -> null);
+        final CommandProcessor processor = proxy (CommandProcessor.class, (proxy, method, args) ->
+        {
+            if (method.getName ().equals ("createSession"))
+            {
+                return (get_session ());
+            }
+            throw new UnsupportedOperationException (method.getName ());
+        });
+
+        return (proxy (BundleContext.class, (proxy, method, args) ->
+        {
+            switch (method.getName ())
+            {
+                case "getProperty":         return (System.getProperty ((String)args [0]));
+                case "getBundle":           return (bundle);
+                case "getServiceReference": return (cp_ref);
+                case "getService":          return (processor);
+                case "ungetService":        return (true);
+            }
+            throw new UnsupportedOperationException (method.getName ());
+        }));
+    }
+
+    // The shell session gets the terminal first thing, that's where the benchmark runs
+    private CommandSession get_session ()
+    {
+        return (proxy (CommandSession.class, (proxy, method, args) ->
+        {
+            if (method.getName ().equals ("put") && Shell.VAR_TERMINAL.equals (args [0]))
+            {
+                run_session ((Terminal)args [1]);
+
+                // Leave before the shell starts, the session closes right after
+                throw new IllegalStateException ("Benchmark session finished");
+            }
+            return (null);
+        }));
+    }
+
+    // Session side: after the mode byte, 'o' writes the lines and 'i' reads them back
+    private void run_session (Terminal terminal)
+        throws IOException
+    {
+        // The client reads only at the end, echoing the lines would stall both sides
+        Attributes attributes = terminal.getAttributes ();
+        attributes.setLocalFlag (Attributes.LocalFlag.ECHO, false);
+        terminal.setAttributes (attributes);
+
+        InputStream in = terminal.input ();
+        OutputStream out = terminal.output ();
+        int mode = in.read ();
+
+        if (mode == 'o')
+        {
+            byte[] line = new byte [BENCH_LINE];
+            Arrays.fill (line, (byte)'o');
+            line [BENCH_LINE - 1] = '\n';
+
+            for (int i = 0; i < lines; i++)
+            {
+                out.write (line, 0, line.length);
+            }
+        }
+        else if (mode == 'i')
+        {
+            byte[] buffer = new byte [BUFFER_SIZE];
+            long received = 0;
+            int count;
+
+            // Up to the end mark, the terminal drops what it still holds on EOF
+            read_loop: while ((count = in.read (buffer, 0, buffer.length)) != -1)
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    if (buffer [i] == END_MARK)
+                    {
+                        received += i;
+                        break read_loop;
+                    }
+                }
+                received += count;
+            }
+            out.write (("received " + received + "\n").getBytes (StandardCharsets.US_ASCII));
+        }
+        out.flush ();
+    }
+
+    // Next payload byte from the server, skipping telnet commands
+    private static int read_payload (InputStream in)
+        throws IOException
+    {
+        int c;
+
+        while ((c = in.read ()) == IAC)
+        {
+            if ((c = in.read ()) == IAC)
+            {
+                break;
+            }
+            else if (c >= 251 && c <= 254)
+            {
+                // WILL, WONT, DO or DONT with its option
+                in.read ();
+            }
+            else if (c == 250)
+            {
+                // Subnegotiation up to IAC SE
+                do
+                {
+                    c = in.read ();
+                }
+                while (c != -1 && !(c == IAC && in.read () == 240));
+            }
+        }
+        return (c);
+    }
+
+    // Client side, returns the MB/s seen by a plain socket
+    private double run_client (int port, char mode)
+        throws IOException
+    {
+        try (Socket socket = new Socket (InetAddress.getLoopbackAddress (), port))
+        {
+            InputStream in = new BufferedInputStream (socket.getInputStream ());
+            OutputStream out = new BufferedOutputStream (socket.getOutputStream (), BUFFER_SIZE);
+            long start = System.nanoTime ();
+            long received = 0;
+            long expected;
+
+            // The NUL is taken by the negotiation read of TelnetIO
+            out.write (new byte[] { 0, (byte)mode });
+
+            if (mode == 'o')
+            {
+                out.flush ();
+                expected = (long)lines * (BENCH_LINE + 1);
+
+                byte[] buffer = new byte [BUFFER_SIZE];
+                int count;
+
+                // Negotiation comes along and the session ends with a notice after
+                // the lines, so count only the line bytes and stop once all came
+                while (received < expected && (count = in.read (buffer)) != -1)
+                {
+                    for (int i = 0; i < count && received < expected; i++)
+                    {
+                        if (buffer [i] == 'o' || buffer [i] == '\r' || buffer [i] == '\n')
+                        {
+                            received++;
+                        }
+                    }
+                }
+            }
+            else
+            {
+                byte[] line = new byte [BENCH_LINE];
+                Arrays.fill (line, (byte)'i');
+                line [BENCH_LINE - 2] = '\r';
+                line [BENCH_LINE - 1] = '\n';
+
+                for (int i = 0; i < lines; i++)
+                {
+                    out.write (line);
+                }
+                out.write (END_MARK);
+                out.flush ();
+                expected = (long)lines * (BENCH_LINE - 1);
+
+                // Only the first line is the reply
+                StringBuilder reply = new StringBuilder ();
+                int c;
+
+                while ((c = read_payload (in)) != -1 && c != '\n')
+                {
+                    if (c >= ' ')
+                    {
+                        reply.append ((char)c);
+                    }
+                }
+                received = reply.toString ().startsWith ("received ")? Long.parseLong (reply.substring (9)): -1;
+            }
+
+            double seconds = (System.nanoTime () - start) / 1e9;
+
+            if (received != expected)
+            {
+                throw new IOException ("Mode " + mode + ": expected " + expected + " bytes, got " + received);
+            }
+            return (expected / seconds / (1024 * 1024));
+        }
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        int megabytes = (args.length > 0)? Integer.parseInt (args [0]): 32;
+        TelnetStreamsBenchmark benchmark = new TelnetStreamsBenchmark (megabytes * 1024 * 1024 / BENCH_LINE);
+
+        // ConnectionManager logs every connection, the reference keeps the level
+        Logger jline_log = Logger.getLogger ("org.jline");
+        jline_log.setLevel (Level.WARNING);
+
+        Telnetd telnetd = new Telnetd (benchmark.get_context ());
+
+        if (!telnetd.start ())
+        {
+            System.exit (1);
+        }
+
+        int port = Integer.getInteger (Telnetd.PORT_PROPERTY, 6523);
+
+        try
+        {
+            for (int round = 1; round <= ROUNDS; round++)
+            {
+                System.out.printf ("round %d: %d MB output %.1f MB/s, input %.1f MB/s%n", round, megabytes,
+                    benchmark.run_client (port, 'o'), benchmark.run_client (port, 'i'));
+            }
+        }
+        finally
+        {
+            telnetd.stop ();
+        }
+    }
+}
+
+// EOF
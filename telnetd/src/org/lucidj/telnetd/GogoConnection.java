@@ -31,6 +31,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.Socket;
 import java.net.SocketException;
 import java.util.Map;
 
@@ -43,13 +44,50 @@ class GogoConnection extends Connection implements ConnectionListener, Shell.Con
     };
 
     private BundleContext context;
+    private Telnetd telnetd;
     private Terminal terminal;
     private TelnetStreams telnet_streams;
+    private volatile Thread worker;
 
-    public GogoConnection (BundleContext context, ThreadGroup threadGroup, ConnectionData connectionData)
+    public GogoConnection (BundleContext context, Telnetd telnetd, ThreadGroup threadGroup, ConnectionData connectionData)
     {
         super (threadGroup, connectionData);
         this.context = context;
+        this.telnetd = telnetd;
+    }
+
+    @Override // Thread
+    public void start ()
+    {
+        // The session runs on the Telnetd worker pool, not on this thread object
+        telnetd.execute_session (this);
+    }
+
+    @Override // Connection
+    public void run ()
+    {
+        worker = Thread.currentThread ();
+
+        try
+        {
+            super.run ();
+        }
+        finally
+        {
+            worker = null;
+        }
+    }
+
+    @Override // Thread
+    public void interrupt ()
+    {
+        Thread current_worker = worker;
+
+        // Connection.close() interrupts the session thread, which is a pool thread
+        if (current_worker != null && current_worker != Thread.currentThread ())
+        {
+            current_worker.interrupt ();
+        }
     }
 
     private void run_gosh (Terminal terminal, Map<String, String> environment)
@@ -151,11 +189,23 @@ class GogoConnection extends Connection implements ConnectionListener, Shell.Con
         catch (IOException ignore) {};
     }
 
+    // Telnet streams for the terminal. TelnetIO reads the socket unbuffered
+    // and takes care of the telnet protocol, so after the first byte reads go
+    // on only while the session buffer holds a whole data byte: a command or
+    // a CR may need bytes not received yet, and TelnetIO would block on them.
+    // Output bypasses TelnetIO byte writes: it is collected on a buffer, with
+    // the same LF to CR LF translation, and written to the socket in blocks
+    // on newline, when the buffer fills or on flush.
     class TelnetStreams
     {
+        private final static int BUFFER_SIZE = 8192;
+        private final static int IAC = 255;
+
         private TelnetIO telnet_io;
         private InputStream telnet_in;
         private OutputStream telnet_out;
+        private OutputStream socket_out;
+        private SessionSocket session_socket;
         private Connection connection;
 
         public TelnetStreams (Connection connection)
@@ -165,11 +215,60 @@ class GogoConnection extends Connection implements ConnectionListener, Shell.Con
             telnet_io.setConnection (connection);
         }
 
+        private int read_byte ()
+            throws IOException
+        {
+            try
+            {
+                // Read 1 byte or EOF (-1)
+                return (telnet_io.read ());
+            }
+            catch (SocketException e)
+            {
+                if (connection.getConnectionData ().getSocket ().isClosed ())
+                {
+                    // Return nice EOF if socket closed exception
+                    return (-1);
+                }
+                throw (e);
+            }
+            catch (EOFException e)
+            {
+                return (-1);
+            }
+        }
+
+        // True when telnet_io.read() surely returns a data byte without blocking
+        private boolean data_available ()
+        {
+            if (session_socket == null)
+            {
+                return (false);
+            }
+
+            int c = session_socket.peek (0);
+
+            if (c == IAC)
+            {
+                // Only an escaped IAC is data, commands may span many bytes
+                return (session_socket.peek (1) == IAC);
+            }
+            else if (c == '\r')
+            {
+                // TelnetIO takes the byte following CR along with it
+                return (session_socket.peek (1) != -1);
+            }
+            return (c != -1);
+        }
+
         public boolean open ()
         {
             try
             {
+                Socket socket = connection.getConnectionData ().getSocket ();
                 telnet_io.initIO ();
+                socket_out = socket.getOutputStream ();
+                session_socket = (socket instanceof SessionSocket)? (SessionSocket)socket: null;
             }
             catch (IOException e)
             {
@@ -183,24 +282,7 @@ class GogoConnection extends Connection implements ConnectionListener, Shell.Con
                 public int read ()
                     throws IOException
                 {
-                    try
-                    {
-                        // Read 1 byte or EOF (-1)
-                        return (telnet_io.read ());
-                    }
-                    catch (SocketException e)
-                    {
-                        if (connection.getConnectionData ().getSocket ().isClosed ())
-                        {
-                            // Return nice EOF if socket closed exception
-                            return (-1);
-                        }
-                        throw (e);
-                    }
-                    catch (EOFException e)
-                    {
-                        return (-1);
-                    }
+                    return (read_byte ());
                 }
 
                 @Override
@@ -221,34 +303,122 @@ class GogoConnection extends Connection implements ConnectionListener, Shell.Con
                         return 0;
                     }
 
-                    // Read 1 byte or EOF (-1)
-                    int c = read ();
+                    // Block for the first byte only
+                    int c = read_byte ();
 
-                    if (c >= 0)
+                    if (c < 0)
                     {
-                        // We read only 1 byte a time
-                        b[off] = (byte)c;
-                        return (1);
+                        return (-1);
                     }
-                    return (-1);
+
+                    b [off] = (byte)c;
+                    int count = 1;
+
+                    // Then take the data bytes already received
+                    while (count < len && data_available ())
+                    {
+                        if ((c = read_byte ()) < 0)
+                        {
+                            break;
+                        }
+                        b [off + count++] = (byte)c;
+                    }
+                    return (count);
+                }
+
+                @Override
+                public int available ()
+                    throws IOException
+                {
+                    // Raw socket bytes may be only telnet commands, so promise just one
+                    return (data_available ()? 1: 0);
                 }
             };
 
-            // Wrap TelnetIO output with an OutputStream
+            // Buffered output on top of the raw socket stream
             telnet_out = new OutputStream ()
             {
+                private final byte[] buffer = new byte [BUFFER_SIZE];
+                private int count;
+                private boolean cr_flag;
+
+                // Same translation as TelnetIO.write(byte): lone LF becomes CR LF
+                private void put (byte b)
+                    throws IOException
+                {
+                    if (count + 2 > buffer.length)
+                    {
+                        flush_buffer ();
+                    }
+
+                    if (!cr_flag && b == '\n')
+                    {
+                        buffer [count++] = '\r';
+                    }
+                    buffer [count++] = b;
+                    cr_flag = (b == '\r');
+                }
+
+                private void flush_buffer ()
+                    throws IOException
+                {
+                    // Negotiation replies go out first, TelnetIO keeps its own buffer
+                    telnet_io.flush ();
+
+                    if (count > 0)
+                    {
+                        socket_out.write (buffer, 0, count);
+                        count = 0;
+                    }
+                }
+
                 @Override
-                public void write (int b)
+                public synchronized void write (int b)
                     throws IOException
                 {
-                    telnet_io.write (b);
+                    put ((byte)b);
+
+                    if (b == '\n')
+                    {
+                        flush_buffer ();
+                    }
                 }
 
                 @Override
-                public void flush ()
+                public synchronized void write (byte[] b, int off, int len)
                     throws IOException
                 {
-                    telnet_io.flush ();
+                    if (off < 0 || len < 0 || len > b.length - off)
+                    {
+                        throw new IndexOutOfBoundsException ();
+                    }
+
+                    boolean newline = false;
+
+                    for (int i = off; i < off + len; i++)
+                    {
+                        put (b [i]);
+                        newline |= (b [i] == '\n');
+                    }
+
+                    if (newline)
+                    {
+                        flush_buffer ();
+                    }
+                }
+
+                @Override
+                public synchronized void flush ()
+                    throws IOException
+                {
+                    flush_buffer ();
+                }
+
+                @Override
+                public synchronized void close ()
+                    throws IOException
+                {
+                    flush_buffer ();
                 }
             };
             return (true);
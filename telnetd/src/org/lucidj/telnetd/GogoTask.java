@@ -31,6 +31,9 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class GogoTask implements Task, Shell.Context
 {
@@ -39,6 +42,8 @@ class GogoTask implements Task, Shell.Context
     private final static int TERMINFO_TYPE = 0;
     private final static int TERMINFO_SIZE = 1;
 
+    private final static int HANDSHAKE_TIMEOUT = 10 * 1000;    // 10 seconds for the terminfo sync
+
     private final static String[] GOSH_ARGV =
     {
         "--login",          // Please?
@@ -156,38 +161,141 @@ class GogoTask implements Task, Shell.Context
         return (-1); // Skip this char
     }
 
+    // Reads until the '\r' which ends the terminfo sync, giving up if it takes too long
+    private boolean wait_handshake (InputStream soft_in)
+        throws IOException
+    {
+        final Thread task_thread = Thread.currentThread ();
+        final CountDownLatch handshake_done = new CountDownLatch (1);
+        final AtomicBoolean timed_out = new AtomicBoolean ();
+
+        Thread watchdog = new Thread (() ->
+        {
+            try
+            {
+                if (!handshake_done.await (HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS))
+                {
+                    log.warn ("Terminal handshake timed out after {}ms", HANDSHAKE_TIMEOUT);
+                    timed_out.set (true);
+
+                    // Unblock the pending read, whichever way the input supports
+                    try
+                    {
+                        in.close ();
+                    }
+                    catch (IOException ignore) {};
+                    task_thread.interrupt ();
+                }
+            }
+            catch (InterruptedException ignore) {};
+        }, task_thread.getName () + "-handshake");
+        watchdog.setDaemon (true);
+        watchdog.start ();
+
+        int ch;
+
+        try
+        {
+            while ((ch = soft_in.read ()) != '\r' && ch != -1);
+        }
+        finally
+        {
+            handshake_done.countDown ();
+
+            try
+            {
+                watchdog.join ();
+            }
+            catch (InterruptedException ignore) {};
+        }
+
+        if (timed_out.get ())
+        {
+            // Clear the interrupt sent by the watchdog
+            Thread.interrupted ();
+            return (false);
+        }
+        return (ch == '\r');
+    }
+
     @Override // Task
     public boolean run ()
         throws Exception
     {
-        // Wrap TelnetIO input with an InputStream
+        // Wrap the task input with an InputStream which filters out terminfo sequences.
+        // Reads block on the task input, so an idle shell costs nothing.
         InputStream soft_in = new InputStream ()
         {
+            private final byte[] buffer = new byte [1024];
+
             @Override
             public int read ()
                 throws IOException
             {
                 try
                 {
-                    int ch = -1;
+                    int ch;
 
-                    while (ch == -1)
+                    do
                     {
-                        // Do NOT run into EOF and filter out terminfo sequences
-                        if (in.available() == 0)
+                        if ((ch = in.read ()) == -1)
                         {
-                            try
+                            return (-1);
+                        }
+                        ch = filter_terminfo_sequences (ch & 0xff);
+                    }
+                    while (ch == -1);
+
+                    return (ch);
+                }
+                catch (IOException e)
+                {
+                    // We assume the connection has closed
+                    return (-1);
+                }
+            }
+
+            @Override
+            public int read (byte[] b, int off, int len)
+                throws IOException
+            {
+                if (off < 0 || len < 0 || len > b.length - off)
+                {
+                    throw new IndexOutOfBoundsException ();
+                }
+                else if (len == 0)
+                {
+                    return (0);
+                }
+
+                try
+                {
+                    for (;;)
+                    {
+                        int count = in.read (buffer, 0, Math.min (len, buffer.length));
+                        int filtered = 0;
+
+                        if (count == -1)
+                        {
+                            return (-1);
+                        }
+
+                        for (int i = 0; i < count; i++)
+                        {
+                            int ch = filter_terminfo_sequences (buffer [i] & 0xff);
+
+                            if (ch != -1)
                             {
-                                Thread.sleep (20);
+                                b [off + filtered++] = (byte)ch;
                             }
-                            catch (InterruptedException ignore) {};
                         }
-                        else // We have available chars to read
+
+                        if (filtered > 0)
                         {
-                            ch = filter_terminfo_sequences (in.read () & 0xff);
+                            return (filtered);
                         }
+                        // Only terminfo sequence chars so far, keep reading
                     }
-                    return (ch);
                 }
                 catch (IOException e)
                 {
@@ -198,7 +306,11 @@ class GogoTask implements Task, Shell.Context
         };
 
         // Synchronize terminfo parameters
-        while (soft_in.read () != '\r');  // todo: timeout
+        if (!wait_handshake (soft_in))
+        {
+            log.debug ("No terminal handshake, connection closed");
+            return (false);
+        }
 
         terminal = TerminalBuilder.builder ()
             .type (terminfo_type)
@@ -0,0 +1,556 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.telnetd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+// Socket facade for a telnet session served by the Telnetd event loop.
+//
+// The channel stays non-blocking and is only touched by the loop thread,
+// which feeds the inbound bytes and drains the outbound ones. The session
+// thread sees plain blocking streams with SO_TIMEOUT, which is what jline
+// TelnetIO expects from a Socket. Reads and writes never share a lock, as
+// the streams of SocketChannel.socket() do on Java 8, so a shell waiting
+// for input doesn't hold its own output.
+class SessionSocket extends Socket
+{
+    private final static int INBOUND_LIMIT  = 64 * 1024;     // Stop reading the channel beyond this
+    private final static int OUTBOUND_LIMIT = 256 * 1024;    // Writers wait beyond this
+    private final static int LINGER_TIMEOUT = 30 * 1000;     // Max time flushing a closed session
+
+    private final Telnetd telnetd;
+    private final SocketChannel channel;
+    private final SocketAddress remote_address;
+    private final SocketAddress local_address;
+    private final long accept_time = System.currentTimeMillis ();
+    private SelectionKey key;
+    private long linger_deadline;                           // Loop thread only
+
+    // Guarded by this
+    private byte[] inbound = new byte [4096];
+    private int in_start;
+    private int in_count;
+    private boolean read_paused;
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<> ();
+    private int out_count;
+    private int so_timeout;
+    private boolean eof;
+    private boolean closed;
+
+    private final InputStream session_in = new SessionInputStream ();
+    private final OutputStream session_out = new SessionOutputStream ();
+
+    SessionSocket (Telnetd telnetd, SocketChannel channel)
+        throws IOException
+    {
+        this.telnetd = telnetd;
+        this.channel = channel;
+        this.remote_address = channel.getRemoteAddress ();
+        this.local_address = channel.getLocalAddress ();
+    }
+
+    //=================================================================================================================
+    // Event loop side
+    //=================================================================================================================
+
+    void register (Selector selector)
+        throws ClosedChannelException
+    {
+        key = channel.register (selector, SelectionKey.OP_READ, this);
+    }
+
+    long get_accept_time ()
+    {
+        return (accept_time);
+    }
+
+    void on_readable (ByteBuffer read_buffer)
+    {
+        read_buffer.clear ();
+
+        try
+        {
+            if (channel.read (read_buffer) == -1)
+            {
+                synchronized (this)
+                {
+                    eof = true;
+                    notifyAll ();
+                }
+                update_interest ();
+                return;
+            }
+        }
+        catch (IOException e)
+        {
+            close_channel ();
+            return;
+        }
+
+        read_buffer.flip ();
+
+        synchronized (this)
+        {
+            int length = read_buffer.remaining ();
+
+            if (in_start + in_count + length > inbound.length)
+            {
+                // Compact, and grow if still short
+                byte[] new_inbound = (in_count + length > inbound.length)?
+                    new byte [Math.max (inbound.length * 2, in_count + length)]: inbound;
+                System.arraycopy (inbound, in_start, new_inbound, 0, in_count);
+                inbound = new_inbound;
+                in_start = 0;
+            }
+
+            read_buffer.get (inbound, in_start + in_count, length);
+            in_count += length;
+            read_paused = (in_count >= INBOUND_LIMIT);
+            notifyAll ();
+        }
+        update_interest ();
+    }
+
+    void on_writable ()
+    {
+        synchronized (this)
+        {
+            try
+            {
+                while (!outbound.isEmpty ())
+                {
+                    ByteBuffer buffer = outbound.peek ();
+                    out_count -= channel.write (buffer);
+
+                    if (buffer.hasRemaining ())
+                    {
+                        // Socket buffer full, wait for the next OP_WRITE
+                        break;
+                    }
+                    outbound.poll ();
+                }
+            }
+            catch (IOException e)
+            {
+                outbound.clear ();
+                out_count = 0;
+                closed = true;
+            }
+            notifyAll ();
+        }
+        update_interest ();
+    }
+
+    // Syncs the channel with the stream state, always on the loop thread
+    void update_interest ()
+    {
+        if (key == null || !key.isValid ())
+        {
+            return;
+        }
+
+        int ops = 0;
+        boolean is_closed;
+        boolean flushed;
+
+        synchronized (this)
+        {
+            if (!read_paused && !eof && !closed)
+            {
+                ops |= SelectionKey.OP_READ;
+            }
+
+            if (out_count > 0)
+            {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            is_closed = closed;
+            flushed = (out_count == 0);
+        }
+
+        if (!is_closed)
+        {
+            key.interestOps (ops);
+            return;
+        }
+
+        if (flushed || (linger_deadline != 0 && System.currentTimeMillis () >= linger_deadline))
+        {
+            close_channel ();
+            return;
+        }
+
+        if (linger_deadline == 0)
+        {
+            // Closed with output pending, keep writing until drained or timed out
+            linger_deadline = System.currentTimeMillis () + LINGER_TIMEOUT;
+            telnetd.linger (this);
+        }
+        key.interestOps (ops);
+    }
+
+    boolean is_registered ()
+    {
+        return (key != null && key.isValid ());
+    }
+
+    void close_channel ()
+    {
+        synchronized (this)
+        {
+            closed = true;
+            eof = true;
+            notifyAll ();
+        }
+
+        if (key != null)
+        {
+            key.cancel ();
+        }
+
+        try
+        {
+            channel.close ();
+        }
+        catch (IOException ignore) {};
+    }
+
+    // Refuses a session that never got a slot
+    void reject (String message)
+    {
+        try
+        {
+            channel.write (ByteBuffer.wrap ((message + "\r\n").getBytes (StandardCharsets.US_ASCII)));
+        }
+        catch (IOException ignore) {};
+        close_channel ();
+    }
+
+    //=================================================================================================================
+    // Session side
+    //=================================================================================================================
+
+    private synchronized int read_bytes (byte[] b, int off, int len)
+        throws IOException
+    {
+        long deadline = (so_timeout > 0)? System.currentTimeMillis () + so_timeout: 0;
+
+        while (in_count == 0 && !eof && !closed)
+        {
+            long wait_ms = 0;
+
+            if (deadline != 0 && (wait_ms = deadline - System.currentTimeMillis ()) <= 0)
+            {
+                throw new SocketTimeoutException ("Read timed out");
+            }
+
+            try
+            {
+                wait (wait_ms);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread ().interrupt ();
+                throw new SocketException ("Interrupted");
+            }
+        }
+
+        if (closed)
+        {
+            throw new SocketException ("Socket closed");
+        }
+
+        if (in_count == 0)
+        {
+            return (-1);
+        }
+
+        int count = Math.min (len, in_count);
+        System.arraycopy (inbound, in_start, b, off, count);
+        in_start += count;
+        in_count -= count;
+
+        if (in_count == 0)
+        {
+            in_start = 0;
+        }
+
+        if (read_paused && in_count < INBOUND_LIMIT / 2)
+        {
+            // Room again, resume reading the channel
+            read_paused = false;
+            telnetd.update (this);
+        }
+        return (count);
+    }
+
+    // The inbound byte at index without taking it, -1 if not received yet
+    synchronized int peek (int index)
+    {
+        return ((index < in_count)? (inbound [in_start + index] & 0xFF): -1);
+    }
+
+    private void write_bytes (byte[] b, int off, int len)
+        throws IOException
+    {
+        boolean was_idle;
+
+        synchronized (this)
+        {
+            while (out_count >= OUTBOUND_LIMIT && !closed)
+            {
+                try
+                {
+                    wait ();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread ().interrupt ();
+                    throw new SocketException ("Interrupted");
+                }
+            }
+
+            if (closed)
+            {
+                throw new SocketException ("Socket closed");
+            }
+
+            byte[] copy = new byte [len];
+            System.arraycopy (b, off, copy, 0, len);
+            was_idle = (out_count == 0);
+            outbound.add (ByteBuffer.wrap (copy));
+            out_count += len;
+        }
+
+        if (was_idle)
+        {
+            // Otherwise OP_WRITE is already set
+            telnetd.update (this);
+        }
+    }
+
+    private class SessionInputStream extends InputStream
+    {
+        private final byte[] single = new byte [1];
+
+        @Override // InputStream
+        public int read ()
+            throws IOException
+        {
+            // TelnetIO reads one byte at a time
+            synchronized (SessionSocket.this)
+            {
+                return ((read_bytes (single, 0, 1) == -1)? -1: (single [0] & 0xFF));
+            }
+        }
+
+        @Override // InputStream
+        public int read (byte[] b, int off, int len)
+            throws IOException
+        {
+            if (off < 0 || len < 0 || len > b.length - off)
+            {
+                throw new IndexOutOfBoundsException ();
+            }
+            return ((len == 0)? 0: read_bytes (b, off, len));
+        }
+
+        @Override // InputStream
+        public int available ()
+        {
+            synchronized (SessionSocket.this)
+            {
+                return (in_count);
+            }
+        }
+
+        @Override // InputStream
+        public void close ()
+        {
+            SessionSocket.this.close ();
+        }
+    }
+
+    private class SessionOutputStream extends OutputStream
+    {
+        @Override // OutputStream
+        public void write (int b)
+            throws IOException
+        {
+            write_bytes (new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override // OutputStream
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            if (off < 0 || len < 0 || len > b.length - off)
+            {
+                throw new IndexOutOfBoundsException ();
+            }
+
+            if (len > 0)
+            {
+                write_bytes (b, off, len);
+            }
+        }
+
+        @Override // OutputStream
+        public void close ()
+        {
+            SessionSocket.this.close ();
+        }
+    }
+
+    //=================================================================================================================
+    // Socket
+    //=================================================================================================================
+
+    @Override // Socket
+    public InputStream getInputStream ()
+        throws IOException
+    {
+        if (isClosed ())
+        {
+            throw new SocketException ("Socket is closed");
+        }
+        return (session_in);
+    }
+
+    @Override // Socket
+    public OutputStream getOutputStream ()
+        throws IOException
+    {
+        if (isClosed ())
+        {
+            throw new SocketException ("Socket is closed");
+        }
+        return (session_out);
+    }
+
+    @Override // Socket
+    public synchronized void setSoTimeout (int timeout)
+    {
+        so_timeout = timeout;
+    }
+
+    @Override // Socket
+    public synchronized int getSoTimeout ()
+    {
+        return (so_timeout);
+    }
+
+    @Override // Socket
+    public void close ()
+    {
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            notifyAll ();
+        }
+
+        // The loop drains what is pending and closes the channel
+        telnetd.update (this);
+    }
+
+    @Override // Socket
+    public synchronized boolean isClosed ()
+    {
+        return (closed);
+    }
+
+    @Override // Socket
+    public boolean isConnected ()
+    {
+        return (true);
+    }
+
+    @Override // Socket
+    public synchronized boolean isInputShutdown ()
+    {
+        return (eof || closed);
+    }
+
+    @Override // Socket
+    public synchronized boolean isOutputShutdown ()
+    {
+        return (closed);
+    }
+
+    @Override // Socket
+    public InetAddress getInetAddress ()
+    {
+        return ((remote_address instanceof InetSocketAddress)? ((InetSocketAddress)remote_address).getAddress (): null);
+    }
+
+    @Override // Socket
+    public int getPort ()
+    {
+        return ((remote_address instanceof InetSocketAddress)? ((InetSocketAddress)remote_address).getPort (): 0);
+    }
+
+    @Override // Socket
+    public InetAddress getLocalAddress ()
+    {
+        return ((local_address instanceof InetSocketAddress)? ((InetSocketAddress)local_address).getAddress (): null);
+    }
+
+    @Override // Socket
+    public int getLocalPort ()
+    {
+        return ((local_address instanceof InetSocketAddress)? ((InetSocketAddress)local_address).getPort (): -1);
+    }
+
+    @Override // Socket
+    public SocketAddress getRemoteSocketAddress ()
+    {
+        return (remote_address);
+    }
+
+    @Override // Socket
+    public SocketAddress getLocalSocketAddress ()
+    {
+        return (local_address);
+    }
+
+    @Override // Object
+    public String toString ()
+    {
+        return ("SessionSocket[" + remote_address + "]");
+    }
+}
+
+// EOF
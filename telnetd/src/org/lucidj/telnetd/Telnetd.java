@@ -25,84 +25,371 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// Telnet server with a single event loop thread: the listening channel and
+// every session channel are multiplexed on one selector, so a burst of
+// connections is drained at once. Each session gets a SessionSocket, and its
+// Gogo shell runs on a worker pool thread. Sessions beyond the connection
+// limit wait on the loop for a free slot, instead of being refused.
 public class Telnetd implements Runnable
 {
     private final static Logger log = LoggerFactory.getLogger (Telnetd.class);
 
-    private final static int DEFAULT_LISTEN_PORT   = 6523;           // Very mnemonic if you remember telnet port :)
-    private final static int MAX_CONNECTIONS       = 10;             // SIMULTANEOUS connections
-    private final static int WARNING_TIMEOUT       = 5 * 60 * 1000;  // 5 minutes
-    private final static int DISCONNECT_TIMEOUT    = 5 * 60 * 1000;  // 5 minutes
-    private final static int HOUSEKEEPING_INTERVAL = 1000;           // 1 second
+    public final static String PORT_PROPERTY            = "osgi.shell.telnet.port";
+    public final static String BACKLOG_PROPERTY         = "lucidj.telnetd.backlog";
+    public final static String MAX_CONNECTIONS_PROPERTY = "lucidj.telnetd.max.connections";
+    public final static String QUEUE_TIMEOUT_PROPERTY   = "lucidj.telnetd.queue.timeout";
+
+    private final static int DEFAULT_LISTEN_PORT     = 6523;           // Very mnemonic if you remember telnet port :)
+    private final static int DEFAULT_BACKLOG         = 50;             // Pending accepts on the socket
+    private final static int DEFAULT_MAX_CONNECTIONS = 10;             // SIMULTANEOUS sessions
+    private final static int DEFAULT_QUEUE_TIMEOUT   = 30 * 1000;      // 30 seconds waiting for a free session
+    private final static int WARNING_TIMEOUT         = 5 * 60 * 1000;  // 5 minutes
+    private final static int DISCONNECT_TIMEOUT      = 5 * 60 * 1000;  // 5 minutes
+    private final static int HOUSEKEEPING_INTERVAL   = 1000;           // 1 second
 
     private BundleContext context;
-    private Thread accept_thread;
+    private int listen_port;
+    private int backlog;
+    private int max_connections;
+    private int queue_timeout;
+
+    private Thread loop_thread;
+    private volatile boolean running;
+    private Selector selector;
+    private ServerSocketChannel server_channel;
     private ConnectionManager connection_manager;
-    private ServerSocket server_socket = null;
+    private ThreadPoolExecutor session_pool;
+
+    private final Queue<SessionSocket> update_queue = new ConcurrentLinkedQueue<> ();
+    private final ArrayDeque<SessionSocket> waiting_sessions = new ArrayDeque<> ();   // Loop thread only
+    private final ArrayList<SessionSocket> lingering_sessions = new ArrayList<> ();   // Loop thread only
+    private final AtomicInteger active_sessions = new AtomicInteger ();
+    private boolean connection_created;                                                // Loop thread only
 
     public Telnetd (BundleContext context)
     {
         this.context = context;
     }
 
+    private int get_int_property (String property, int default_value)
+    {
+        String value = context.getProperty (property);
+
+        try
+        {
+            return ((value == null)? default_value: Integer.parseInt (value.trim ()));
+        }
+        catch (NumberFormatException e)
+        {
+            // osgi.shell.telnet.port may be used as a simple on/off switch
+            return (default_value);
+        }
+    }
+
     public boolean start ()
     {
+        listen_port = get_int_property (PORT_PROPERTY, DEFAULT_LISTEN_PORT);
+        backlog = Math.max (1, get_int_property (BACKLOG_PROPERTY, DEFAULT_BACKLOG));
+        max_connections = Math.max (1, get_int_property (MAX_CONNECTIONS_PROPERTY, DEFAULT_MAX_CONNECTIONS));
+        queue_timeout = Math.max (0, get_int_property (QUEUE_TIMEOUT_PROPERTY, DEFAULT_QUEUE_TIMEOUT));
+
         try
         {
-            server_socket = new ServerSocket (DEFAULT_LISTEN_PORT, 1, InetAddress.getLoopbackAddress());
+            selector = Selector.open ();
+            server_channel = ServerSocketChannel.open ();
+            server_channel.configureBlocking (false);
+            server_channel.bind (new InetSocketAddress (InetAddress.getLoopbackAddress (), listen_port), backlog);
+            server_channel.register (selector, SelectionKey.OP_ACCEPT);
         }
         catch (IOException e)
         {
-            log.error ("Failed to listen port {}", DEFAULT_LISTEN_PORT, e);
+            log.error ("Failed to listen port {}", listen_port, e);
+            close_quietly ();
             return (false);
         }
 
-        connection_manager = new ConnectionManager (MAX_CONNECTIONS, WARNING_TIMEOUT, DISCONNECT_TIMEOUT,
+        // We keep the connection limit ourselves, the manager limit is just a safety net
+        // for closed connections not yet cleaned up by its housekeeping
+        connection_manager = new ConnectionManager (max_connections * 2, WARNING_TIMEOUT, DISCONNECT_TIMEOUT,
                                                     HOUSEKEEPING_INTERVAL, null, null, false)
         {
             @Override
-            // TODO: CHECK THREAD LEAKING
             protected Connection createConnection (ThreadGroup threadGroup, ConnectionData connectionData)
             {
-                return (new GogoConnection (context, threadGroup, connectionData));
+                connection_created = true;
+                return (new GogoConnection (context, Telnetd.this, threadGroup, connectionData));
             }
         };
 
         // Start ConnectionManager housekeeping
         connection_manager.start ();
 
-        // Start listening inbound connections
-        accept_thread = new Thread (this);
-        accept_thread.setName (context.getBundle().getSymbolicName() + "-srv-" + DEFAULT_LISTEN_PORT);
-        accept_thread.start ();
+        // Shells block on their sessions, so each one needs a thread. The pool itself is not
+        // capped: active_sessions already admits at most max_connections, and a worker whose
+        // session just ended may not be back on the queue when the next session is dispatched
+        final String bundle_name = context.getBundle ().getSymbolicName ();
+        final AtomicInteger session_counter = new AtomicInteger ();
+        session_pool = new ThreadPoolExecutor (0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable> (), r ->
+            {
+                Thread t = new Thread (r, bundle_name + "-session-" + session_counter.incrementAndGet ());
+                t.setDaemon (true);
+                return (t);
+            });
+
+        // Start the event loop
+        running = true;
+        loop_thread = new Thread (this);
+        loop_thread.setName (bundle_name + "-srv-" + listen_port);
+        loop_thread.start ();
         return (true);
     }
 
-    public void run ()
+    // Runs a session on the worker pool, called by GogoConnection instead of starting a thread
+    void execute_session (Connection connection)
     {
-        log.info ("TelnedD listener started on localhost:{}", DEFAULT_LISTEN_PORT);
+        try
+        {
+            session_pool.execute (() ->
+            {
+                try
+                {
+                    connection.run ();
+                }
+                finally
+                {
+                    // A slot is free, the loop may dispatch a waiting session
+                    active_sessions.decrementAndGet ();
+                    selector.wakeup ();
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Only when shutting down
+            active_sessions.decrementAndGet ();
+            connection.close ();
+        }
+    }
 
-        while (!accept_thread.isInterrupted ()
-               && !server_socket.isClosed ())
+    // Requests the loop to sync a session channel with its streams
+    void update (SessionSocket session)
+    {
+        update_queue.add (session);
+        selector.wakeup ();
+    }
+
+    // A closed session still draining its output, always on the loop thread
+    void linger (SessionSocket session)
+    {
+        lingering_sessions.add (session);
+    }
+
+    private void expire_lingering_sessions ()
+    {
+        for (Iterator<SessionSocket> it = lingering_sessions.iterator (); it.hasNext ();)
+        {
+            SessionSocket session = it.next ();
+
+            // Closes the channel once drained or past its linger timeout
+            session.update_interest ();
+
+            if (!session.is_registered ())
+            {
+                it.remove ();
+            }
+        }
+    }
+
+    private void accept_connections ()
+        throws IOException
+    {
+        SocketChannel channel;
+
+        // Drain every pending connection at once
+        while ((channel = server_channel.accept ()) != null)
         {
             try
             {
-                connection_manager.makeConnection (server_socket.accept ());
+                channel.configureBlocking (false);
+                channel.socket ().setTcpNoDelay (true);
+                SessionSocket session = new SessionSocket (this, channel);
+                session.register (selector);
+                waiting_sessions.add (session);
             }
             catch (IOException e)
             {
-                if (!server_socket.isClosed ())
+                log.warn ("Exception accepting connection", e);
+                channel.close ();
+            }
+        }
+    }
+
+    private void dispatch_waiting_sessions ()
+    {
+        while (!waiting_sessions.isEmpty () && active_sessions.get () < max_connections)
+        {
+            SessionSocket session = waiting_sessions.poll ();
+
+            if (session.isClosed ())
+            {
+                continue;
+            }
+
+            active_sessions.incrementAndGet ();
+            connection_created = false;
+            connection_manager.makeConnection (session);
+
+            if (!connection_created)
+            {
+                // The manager is full of closed connections and drops the socket
+                // silently, so the session waits for its next housekeeping round
+                active_sessions.decrementAndGet ();
+                waiting_sessions.addFirst (session);
+                break;
+            }
+        }
+
+        if (waiting_sessions.isEmpty ())
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis ();
+
+        for (Iterator<SessionSocket> it = waiting_sessions.iterator (); it.hasNext ();)
+        {
+            SessionSocket session = it.next ();
+
+            if (session.isClosed ())
+            {
+                it.remove ();
+            }
+            else if (now - session.get_accept_time () > queue_timeout)
+            {
+                log.info ("Refusing connection {} after {}ms waiting for a free session",
+                          session.getRemoteSocketAddress (), queue_timeout);
+                session.reject ("Too many connections, please try again later.");
+                it.remove ();
+            }
+        }
+    }
+
+    public void run ()
+    {
+        ByteBuffer read_buffer = ByteBuffer.allocateDirect (8192);
+        SessionSocket session;
+
+        log.info ("TelnedD listener started on localhost:{} (backlog {}, {} sessions)",
+                  listen_port, backlog, max_connections);
+
+        try
+        {
+            while (running)
+            {
+                selector.select (HOUSEKEEPING_INTERVAL);
+
+                while ((session = update_queue.poll ()) != null)
                 {
-                    // Warn only if we are on the fly, ignore when shutting down
-                    log.warn ("Exception accepting connection", e);
+                    session.update_interest ();
                 }
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys ().iterator (); it.hasNext ();)
+                {
+                    SelectionKey key = it.next ();
+                    it.remove ();
+
+                    if (!key.isValid ())
+                    {
+                        continue;
+                    }
+
+                    if (key.isAcceptable ())
+                    {
+                        accept_connections ();
+                        continue;
+                    }
+
+                    session = (SessionSocket)key.attachment ();
+
+                    if (key.isReadable ())
+                    {
+                        session.on_readable (read_buffer);
+                    }
+
+                    if (key.isValid () && key.isWritable ())
+                    {
+                        session.on_writable ();
+                    }
+                }
+
+                dispatch_waiting_sessions ();
+                expire_lingering_sessions ();
+            }
+        }
+        catch (IOException | ClosedSelectorException e)
+        {
+            if (running)
+            {
+                // Warn only if we are on the fly, ignore when shutting down
+                log.warn ("Exception on telnet event loop", e);
             }
         }
+        finally
+        {
+            close_quietly ();
+        }
         log.info ("TelnedD listener thread stopped");
     }
 
+    private void close_quietly ()
+    {
+        if (selector != null && selector.isOpen ())
+        {
+            // Every session channel goes down with the loop
+            for (SelectionKey key: selector.keys ())
+            {
+                if (key.attachment () instanceof SessionSocket)
+                {
+                    ((SessionSocket)key.attachment ()).close_channel ();
+                }
+            }
+
+            try
+            {
+                selector.close ();
+            }
+            catch (IOException ignore) {};
+        }
+
+        if (server_channel != null)
+        {
+            try
+            {
+                server_channel.close ();
+            }
+            catch (IOException ignore) {};
+        }
+    }
+
     public synchronized void stop ()
     {
         // Stop housekeeping
@@ -118,23 +405,17 @@ public class Telnetd implements Runnable
             }
         }.start ();
 
-        // Stop accepting connections
-        try
-        {
-            server_socket.close ();
-        }
-        catch (IOException e)
-        {
-            log.warn ("Exception closing listener socket", e);
-        }
+        // Stop the event loop, wait at most 3 secs for clean stop
+        running = false;
+        selector.wakeup ();
 
-        // Stop listener thread, wait at most 3 secs for clean stop
         try
         {
-            accept_thread.interrupt ();
-            accept_thread.join (3000);
+            loop_thread.join (3000);
         }
         catch (InterruptedException ignore) {};
+
+        session_pool.shutdownNow ();
         log.info ("TelnedD stopped");
     }
 }
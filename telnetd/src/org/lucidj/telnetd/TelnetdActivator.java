@@ -45,8 +45,8 @@ public class TelnetdActivator implements TaskProvider, BundleActivator
     {
         context = bundleContext;
 
-        // TODO: ALLOW TO ACTUALLY DEFINE TELNET PORT, INSTEAD OF JUST ON/OFF SWITCH
-        if (context.getProperty ("osgi.shell.telnet.port") != null)
+        // The port is used when numeric, otherwise it's just an on/off switch
+        if (context.getProperty (Telnetd.PORT_PROPERTY) != null)
         {
             // Create our micro-telnet server...
             telnetd = new Telnetd (context);